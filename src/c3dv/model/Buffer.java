@@ -1,7 +1,13 @@
 package c3dv.model;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
 /**
- * Buffer that wraps a byte array and contains utility methods to parse a C3D file.
+ * Buffer that wraps a byte array (or a memory-mapped region of a file) and contains utility methods
+ * to parse a C3D file.
  * 
  * @author Justin Stoecker
  */
@@ -13,22 +19,50 @@ public class Buffer {
     BIG_ENDIAN
   }
 
-  private int          position = 0;
-  private ByteOrder    order    = ByteOrder.LITTLE_ENDIAN;
-  private final byte[] data;
+  private int              position = 0;
+  private ByteOrder        order    = ByteOrder.LITTLE_ENDIAN;
+  private final ByteBuffer data;
+
+  // views over the entire buffer in the current byte order; created on first bulk read
+  private ShortBuffer      shortView;
+  private FloatBuffer      floatView;
+  private IntBuffer        intView;
 
   public Buffer(byte[] data) {
+    this.data = ByteBuffer.wrap(data);
+  }
+
+  /** Wraps a NIO buffer (e.g. a MappedByteBuffer); absolute indices are relative to its start. */
+  public Buffer(ByteBuffer data) {
     this.data = data;
   }
 
+  /**
+   * @return A new buffer that shares this buffer's bytes but has its own position and views, so it
+   *         can be read from another thread.
+   */
+  public Buffer duplicate() {
+    Buffer copy = new Buffer(data.duplicate());
+    copy.order = order;
+    return copy;
+  }
+
   /** Sets the byte order */
   public void setOrder(ByteOrder order) {
     this.order = order;
+    shortView = null;
+    floatView = null;
+    intView = null;
   }
   
-  /** @return The underlying array of bytes. */
+  /** @return The underlying array of bytes, or null if the buffer is not backed by an array. */
   public byte[] array() {
-    return data;
+    return data.hasArray() ? data.array() : null;
+  }
+
+  /** @return The number of bytes in the buffer. */
+  public int size() {
+    return data.capacity();
   }
 
   // POSITION
@@ -67,13 +101,15 @@ public class Buffer {
 
   /** @return The (signed) byte at position i (0-based indexing). */
   public byte getSByte(int i) {
-    return data[i];
+    return data.get(i);
   }
 
   /** @return The (signed) n bytes starting at position i (0-based indexing). */
   public byte[] getSBytes(int i, int n) {
     byte[] buf = new byte[n];
-    System.arraycopy(data, i, buf, 0, n);
+    ByteBuffer src = data.duplicate();
+    src.position(i);
+    src.get(buf);
     return buf;
   }
 
@@ -96,7 +132,7 @@ public class Buffer {
 
   /** @return The unsigned representation of the byte at position i (0-based indexing). */
   public int getUByte(int i) {
-    return (data[i] & 0xff);
+    return (data.get(i) & 0xff);
   }
 
   /** @return The unsigned representation of n bytes starting at position i (0-based indexing). */
@@ -139,11 +175,28 @@ public class Buffer {
   /** Reads the next n shorts from the buffer, incrementing the position by 2 * n. */
   public short[] getSShorts(int n) {
     short[] shorts = new short[n];
-    for (int i = 0; i < n; i++)
-      shorts[i] = getSShort();
+    getSShorts(position, shorts, 0, n);
+    position += 2 * n;
     return shorts;
   }
 
+  /**
+   * Reads n (signed) shorts starting at position i (0-based indexing) into dst, starting at
+   * dst[offset]. The buffer position is not changed.
+   */
+  public void getSShorts(int i, short[] dst, int offset, int n) {
+    if ((i & 1) != 0) {
+      for (int j = 0; j < n; j++)
+        dst[offset + j] = getSShort(i + 2 * j);
+      return;
+    }
+
+    if (shortView == null)
+      shortView = view().asShortBuffer();
+    shortView.position(i >> 1);
+    shortView.get(dst, offset, n);
+  }
+
   // UNSIGNED SHORT (16-bit) : Java shorts are signed, so an unsigned representation is returned
   // ----------------------------------------------------------------------------------------------
 
@@ -218,17 +271,58 @@ public class Buffer {
   /** Reads the next n floats from the buffer, incrementing the position by 4 * n. */
   public float[] getFloats(int n) {
     float[] floats = new float[n];
-    for (int i = 0; i < n; i++)
-      floats[i] = getFloat();
+    getFloats(position, floats, 0, n);
+    position += 4 * n;
     return floats;
   }
+
+  /**
+   * Reads n floats starting at position i (0-based indexing) into dst, starting at dst[offset]. The
+   * buffer position is not changed.
+   */
+  public void getFloats(int i, float[] dst, int offset, int n) {
+    if ((i & 3) != 0) {
+      for (int j = 0; j < n; j++)
+        dst[offset + j] = getFloat(i + 4 * j);
+      return;
+    }
+
+    if (order == ByteOrder.MIDDLE_ENDIAN) {
+      // DEC floats: swap the 16-bit halves of the little-endian word and adjust the exponent
+      if (intView == null)
+        intView = view().asIntBuffer();
+      intView.position(i >> 2);
+      for (int j = 0; j < n; j++) {
+        int word = intView.get();
+        int bits = Integer.rotateLeft(word, 16);
+        if (word != 0)
+          bits -= 1 << 24;
+        dst[offset + j] = Float.intBitsToFloat(bits);
+      }
+      return;
+    }
+
+    if (floatView == null)
+      floatView = view().asFloatBuffer();
+    floatView.position(i >> 2);
+    floatView.get(dst, offset, n);
+  }
+
+  /** @return A duplicate of the whole buffer in the NIO byte order matching the current order. */
+  private ByteBuffer view() {
+    ByteBuffer view = data.duplicate();
+    view.clear();
+    view.order(order == ByteOrder.BIG_ENDIAN ? java.nio.ByteOrder.BIG_ENDIAN
+        : java.nio.ByteOrder.LITTLE_ENDIAN);
+    return view;
+  }
   
   // STRING (n*8-bit)
   // ----------------------------------------------------------------------------------------------
 
   /** @return The string at position i (0-based indexing) with length. */
   public String getString(int i, int length) {
-    return (length == 0) ? null : new String(data, i, length);
+    return (length == 0) ? null : new String(getSBytes(i, length));
   }
   
   /** Reads length bytes, increments position by length, and returns the string. */
@@ -13,8 +13,26 @@ public class ByteParameter extends Parameter {
 
   public ByteParameter(String name, int groupID, int[] dimensions, Buffer dataBuf, String description,
       boolean locked) {
-    super(name, groupID, dimensions, description, locked);
-    data = (dataBuf == null) ? null : dataBuf.getUBytes(dataBuf.array().length);
+    this(name, groupID, dimensions, dataBuf, 0, (dataBuf == null) ? 0 : dataBuf.size(), description,
+        locked);
+  }
+
+  ByteParameter(String name, int groupID, int[] dimensions, Buffer encoded, int offset, int length,
+      String description, boolean locked) {
+    super(name, groupID, dimensions, encoded, offset, length, description, locked);
+  }
+
+  /** @return The parameter's values, or null if it has none. */
+  public int[] getData() {
+    ensureDecoded();
+    return data;
+  }
+
+  @Override
+  void decode(Buffer buf, int offset, int length) {
+    data = new int[length];
+    for (int i = 0; i < length; i++)
+      data[i] = buf.getUByte(offset + i);
   }
 
   @Override
@@ -24,12 +42,12 @@ public class ByteParameter extends Parameter {
 
   @Override
   public String dataString() {
-    return Arrays.toString(data);
+    return Arrays.toString(getData());
   }
 
   @Override
   public byte[] getDataBytes() {
-    if (data == null)
+    if (getData() == null)
       return null;
 
     byte[] bytes = new byte[data.length];
@@ -37,4 +55,23 @@ public class ByteParameter extends Parameter {
       bytes[i] = (byte) data[i];
     return bytes;
   }
+
+  @Override
+  boolean selectData(int[] indices, int n) {
+    if (getData() == null)
+      return false;
+    int m = data.length / n;
+    int[] selected = new int[indices.length * m];
+    for (int i = 0; i < indices.length; i++)
+      System.arraycopy(data, indices[i] * m, selected, i * m, m);
+    data = selected;
+    return true;
+  }
+
+  @Override
+  Parameter copy() {
+    ByteParameter copy = new ByteParameter(name, id, copyDimensions(), null, description, locked);
+    copy.data = (getData() == null) ? null : data.clone();
+    return copy;
+  }
 }
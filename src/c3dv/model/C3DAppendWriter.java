@@ -0,0 +1,217 @@
+package c3dv.model;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records a C3D file while frames are still arriving. The header and a parameter section sized for
+ * the final file are written when the file is opened, frames are appended to the end of the data
+ * section, and at every checkpoint the frame count in the header (last3DFrame), POINT:FRAMES and
+ * TRIAL:ACTUAL_END_FIELD is updated in place. The count is only updated once the frames it covers
+ * have been forced to disk, so if recording stops at any point the file is a valid trial of the
+ * frames up to the last checkpoint.
+ *
+ * <pre>
+ * C3DAppendWriter writer = new C3DAppendWriter();
+ * if (writer.open(template, fileName)) {
+ *   while (capturing)
+ *     writer.append(frame);
+ *   writer.close();
+ * }
+ * </pre>
+ *
+ * @author Justin Stoecker
+ */
+public class C3DAppendWriter {
+
+  /** Default number of frames appended between checkpoints. */
+  static final int          CHECKPOINT_FRAMES = 100;
+
+  /** Number of bytes of frame records buffered before they are written to the file. */
+  static final int          WRITE_SIZE        = 64 * 1024;
+
+  private final C3DWriter   writer            = new C3DWriter();
+  private C3DFile           file;
+  private RandomAccessFile  raf;
+  private FileChannel       channel;
+  private ByteBuffer        chunk;
+  private int               frameSize;
+  private long              dataEnd;
+  private int               numFrames;
+  private int               checkpointFrames  = CHECKPOINT_FRAMES;
+  private int               lastCheckpoint;
+  private Parameter         pointFrames;
+  private Parameter         actualEnd;
+
+  /** Sets the number of frames appended between automatic checkpoints. */
+  public void setCheckpointInterval(int frames) {
+    this.checkpointFrames = Math.max(1, frames);
+  }
+
+  /** @return The number of frames appended so far. */
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  /**
+   * Creates fileName and writes the header and parameters of template, which describe the frames
+   * that will be appended (points, analog channels, data format and rates). The frames of template
+   * are ignored. POINT:FRAMES and the TRIAL:ACTUAL_START_FIELD and ACTUAL_END_FIELD parameters are
+   * added if template does not have them, so that trials longer than 65535 frames can be read.
+   * The writer works on a copy of template's header and parameters, so template is not changed.
+   */
+  public boolean open(C3DFile template, String fileName) {
+    file = template.copyMetadata();
+    if (file.first3DFrame < 1)
+      file.first3DFrame = 1;
+    file.last3DFrame = file.first3DFrame - 1;
+
+    // the parameters are added now, so only their values change at checkpoints
+    if (!file.storeFrameRange(true) || !writer.writeMetadata(file))
+      return false;
+    pointFrames = file.getParameter("POINT", "FRAMES");
+    actualEnd = file.getParameter("TRIAL", "ACTUAL_END_FIELD");
+
+    frameSize = writer.recordSize();
+    chunk = ByteBuffer.allocateDirect(Math.max(WRITE_SIZE, frameSize));
+    chunk.order(ByteOrder.LITTLE_ENDIAN);
+    numFrames = 0;
+    lastCheckpoint = 0;
+
+    try {
+      raf = new RandomAccessFile(fileName, "rw");
+      raf.setLength(0);
+      channel = raf.getChannel();
+      writeFully(writer.buf, 0);
+      dataEnd = (file.dataStartBlock - 1) * 512L;
+      channel.force(false);
+      return true;
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DAppendWriter.open): could not find file: " + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DAppendWriter.open): " + e.getMessage());
+      e.printStackTrace();
+      channel = null;
+      close();
+      return false;
+    }
+  }
+
+  /**
+   * Encodes a frame at the end of the data section. The record is buffered and written with the
+   * following frames, at the latest by the next checkpoint.
+   *
+   * @return False if the frame does not match the file or could not be written.
+   */
+  public boolean append(Frame frame) {
+    if (channel == null)
+      return false;
+    boolean analogMatches = file.numAnalogChannelsPerVideoFrame == 0
+        || (frame.getNumSamples() == file.numAnalogSamplesPerFrame && frame.getNumChannels() == file
+            .numAnalogChannels());
+    if (frame.getNumPoints() != file.num3DPoints || !analogMatches) {
+      System.err.println("(C3DAppendWriter.append): frame does not match the points and channels "
+          + "of the file.");
+      return false;
+    }
+
+    if (chunk.remaining() < frameSize && !flush())
+      return false;
+
+    writer.encodeFrame(chunk, frame);
+    numFrames++;
+
+    if (numFrames - lastCheckpoint >= checkpointFrames)
+      return checkpoint();
+    return true;
+  }
+
+  /**
+   * Writes the buffered frames, forces them to disk, and then updates the frame count in the header
+   * and parameters.
+   *
+   * @return False if the file could not be written.
+   */
+  public boolean checkpoint() {
+    if (channel == null || !flush())
+      return false;
+
+    try {
+      channel.force(false);
+
+      file.last3DFrame = file.first3DFrame + numFrames - 1;
+      file.storeFrameRange(true);
+
+      ByteBuffer lastFrame = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+      lastFrame.putShort(0, (short) Math.min(file.last3DFrame, 0xffff));
+      writeFully(lastFrame, 8); // word 5 of the header
+      writeParameterData(pointFrames);
+      writeParameterData(actualEnd);
+
+      lastCheckpoint = numFrames;
+      return true;
+    } catch (IOException e) {
+      System.err.println("(C3DAppendWriter.checkpoint): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Makes a final checkpoint, pads the data section to a whole block and closes the file.
+   *
+   * @return False if the file could not be completed.
+   */
+  public boolean close() {
+    if (raf == null)
+      return false;
+
+    boolean completed = checkpoint();
+    try {
+      if (completed) {
+        int padding = (int) ((512 - dataEnd % 512) % 512);
+        writeFully(ByteBuffer.allocate(padding), dataEnd);
+        dataEnd += padding;
+      }
+      raf.close();
+    } catch (IOException e) {
+      System.err.println("(C3DAppendWriter.close): " + e.getMessage());
+      e.printStackTrace();
+      completed = false;
+    }
+    channel = null;
+    raf = null;
+    return completed;
+  }
+
+  /** Writes the frame records buffered in chunk to the end of the data section. */
+  private boolean flush() {
+    chunk.flip();
+    try {
+      int n = chunk.remaining();
+      writeFully(chunk, dataEnd);
+      dataEnd += n;
+      return true;
+    } catch (IOException e) {
+      System.err.println("(C3DAppendWriter.flush): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    } finally {
+      chunk.clear();
+    }
+  }
+
+  private void writeParameterData(Parameter param) throws IOException {
+    writeFully(ByteBuffer.wrap(param.getDataBytes()), writer.dataOffsets.get(param));
+  }
+
+  private void writeFully(ByteBuffer src, long position) throws IOException {
+    while (src.hasRemaining())
+      position += channel.write(src, position);
+  }
+}
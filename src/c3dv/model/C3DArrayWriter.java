@@ -0,0 +1,156 @@
+package c3dv.model;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exports the frames of a C3D file as little-endian float32 arrays in NumPy's .npy format, which
+ * numpy.load (or numpy.memmap) reads without parsing. Points are written as an array of shape
+ * [frames, points, 4] holding X, Y, Z and the residual (negative for invalid points), and analog
+ * data as an array of shape [samples, channels]. The output file is memory-mapped and the decoded
+ * values are stored directly into the mapping. Without the .npy header ({@link #setRaw(boolean)})
+ * the file is just the array, in the same row-major order.
+ *
+ * @author Justin Stoecker
+ */
+public class C3DArrayWriter {
+
+  /** Largest number of bytes mapped by a single segment of the output file. */
+  static final int           SEGMENT_SIZE = 1 << 30;
+
+  /** Data in .npy files starts at a multiple of this many bytes. */
+  private static final int   NPY_ALIGN    = 64;
+
+  private static final byte[] NPY_MAGIC   = { (byte) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+
+  private boolean            raw;
+
+  /** Sets whether the arrays are written without the .npy header. */
+  public void setRaw(boolean raw) {
+    this.raw = raw;
+  }
+
+  /**
+   * Writes the points as a float32 array of shape [frames, points, 4].
+   *
+   * @return False if the file could not be written.
+   */
+  public boolean writePoints(C3DFile file, String fileName) {
+    final int numPoints = file.num3DPoints;
+    return write(file, fileName, "writePoints", numPoints * 4, 1, new int[] { file.getNumFrames(),
+        numPoints, 4 }, new RowWriter() {
+      public void write(FloatBuffer dst, Frame frame, int sample) {
+        for (int point = 0; point < numPoints; point++) {
+          dst.put(frame.getX(point));
+          dst.put(frame.getY(point));
+          dst.put(frame.getZ(point));
+          dst.put(frame.getResidual(point));
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the analog samples as a float32 array of shape [samples, channels], where samples is the
+   * number of frames times the number of analog samples per frame.
+   *
+   * @return False if the file could not be written.
+   */
+  public boolean writeAnalog(C3DFile file, String fileName) {
+    final int numChannels = file.numAnalogChannels();
+    int numSamples = (numChannels == 0) ? 0 : file.numAnalogSamplesPerFrame;
+    return write(file, fileName, "writeAnalog", numChannels, numSamples, new int[] {
+        file.getNumFrames() * numSamples, numChannels }, new RowWriter() {
+      public void write(FloatBuffer dst, Frame frame, int sample) {
+        for (int channel = 0; channel < numChannels; channel++)
+          dst.put(frame.getAnalog(sample, channel));
+      }
+    });
+  }
+
+  /** Stores the values of one row (one frame of points, or one analog sample) of an array. */
+  private interface RowWriter {
+    void write(FloatBuffer dst, Frame frame, int sample);
+  }
+
+  /**
+   * Writes the header and maps the array in segments of whole frames, each of which is filled
+   * frame by frame through a float view of the mapping.
+   */
+  private boolean write(C3DFile file, String fileName, String method, int rowFloats,
+      int rowsPerFrame, int[] shape, RowWriter rowWriter) {
+    int numFrames = file.getNumFrames();
+    long frameBytes = 4L * rowFloats * rowsPerFrame;
+    byte[] header = raw ? new byte[0] : npyHeader(shape);
+
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(fileName, "rw");
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      while (headerBuffer.hasRemaining())
+        channel.write(headerBuffer);
+
+      int segmentFrames = (int) Math.max(1, SEGMENT_SIZE / Math.max(1, frameBytes));
+      for (int first = 0; first < numFrames && frameBytes > 0; first += segmentFrames) {
+        int count = Math.min(segmentFrames, numFrames - first);
+        ByteBuffer mapping = channel.map(MapMode.READ_WRITE, header.length + first * frameBytes,
+            count * frameBytes);
+        FloatBuffer dst = mapping.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        for (int frameIndex = first; frameIndex < first + count; frameIndex++) {
+          Frame frame = file.getFrame(frameIndex);
+          for (int sample = 0; sample < rowsPerFrame; sample++)
+            rowWriter.write(dst, frame, sample);
+        }
+      }
+      raf.close();
+      return true;
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DArrayWriter." + method + "): could not create file: "
+          + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DArrayWriter." + method + "): " + e.getMessage());
+      e.printStackTrace();
+      try {
+        raf.close();
+      } catch (IOException e2) {
+      }
+      return false;
+    }
+  }
+
+  /**
+   * @return The .npy (version 1.0) header of a little-endian float32 array in C order, padded with
+   *         spaces so that the data is aligned.
+   */
+  static byte[] npyHeader(int[] shape) {
+    StringBuilder dict = new StringBuilder("{'descr': '<f4', 'fortran_order': False, 'shape': (");
+    for (int i = 0; i < shape.length; i++)
+      dict.append((i > 0) ? ", " : "").append(shape[i]);
+    dict.append((shape.length == 1) ? ",), }" : "), }");
+
+    // magic (6), version (2) and the header length (2) precede the dictionary, which ends in '\n'
+    int prefix = NPY_MAGIC.length + 4;
+    int padded = ((prefix + dict.length() + 1 + NPY_ALIGN - 1) / NPY_ALIGN) * NPY_ALIGN;
+    while (prefix + dict.length() + 1 < padded)
+      dict.append(' ');
+    dict.append('\n');
+
+    ByteBuffer header = ByteBuffer.allocate(padded).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(NPY_MAGIC);
+    header.put((byte) 1);
+    header.put((byte) 0);
+    header.putShort((short) dict.length());
+    header.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+    return header.array();
+  }
+}
@@ -0,0 +1,375 @@
+package c3dv.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import c3dv.model.C3DFile.AnalogFormat;
+import c3dv.model.C3DFile.DataFormat;
+
+/**
+ * Converts the data section of a C3D file between the INTEGER and REAL formats without decoding
+ * frames. The frame records are read a chunk at a time as raw 16-bit words or floats and converted
+ * straight to the target encoding, so a conversion costs a pass over the file (two when converting
+ * to INTEGER) instead of a load and a write.
+ * <p>
+ * INTEGER to REAL is exact: coordinates are multiplied by the 3D scale factor and analog samples
+ * keep their raw values. REAL to INTEGER first finds the range of the coordinates and of each
+ * analog channel; the 3D scale factor is chosen so that the largest coordinate uses the full 16-bit
+ * range, and analog channels that are not whole numbers within 16 bits are rescaled to the full
+ * 16-bit range through ANALOG:SCALE and ANALOG:OFFSET.
+ *
+ * @author Justin Stoecker
+ */
+public class C3DConverter {
+
+  /** Approximate number of bytes of frame records converted at a time. */
+  static final int   CHUNK_SIZE = 1 << 20;
+
+  private C3DFile    file;
+  private FileChannel in;
+  private long       dataStart;
+  private int        numFrames;
+  private int        frameSize;
+  private int        chunkFrames;
+  private int        pointWords;
+  private int        frameWords;
+  private int        numChannels;
+  private ByteBuffer chunk;
+  private Buffer     chunkBuffer;
+
+  /** Source words of a chunk: 16-bit words of an INTEGER file, or floats of a REAL file. */
+  private short[]    words;
+  private float[]    values;
+
+  /**
+   * Largest absolute coordinate, and range of the raw values of each channel and whether they are
+   * all whole numbers, in a REAL file.
+   */
+  private float      maxCoordinate;
+  private float[]    channelMin;
+  private float[]    channelMax;
+  private boolean[]  channelIntegral;
+
+  /** 3D scale factor of the source file, the unit of the residuals of its points. */
+  private float      sourceScale;
+
+  /** Conversion of REAL analog samples to 16-bit words: word = (raw - from) * ratio + to. */
+  private float[]    analogFrom;
+  private float[]    analogRatio;
+  private float[]    analogTo;
+
+  /**
+   * Converts the file srcName to format and writes the result to dstName, which may be the same
+   * file. A file that is already in the format is rewritten unchanged (in little-endian order).
+   *
+   * @return False if the file could not be read or written.
+   */
+  public boolean convert(String srcName, String dstName, DataFormat format) {
+    file = new C3DReader().loadMetadata(srcName);
+    if (file == null)
+      return false;
+
+    File target = new File(dstName);
+    File outFile = C3DWriter.isSameFile(new File(srcName), target) ? new File(dstName + ".tmp")
+        : target;
+
+    // once outFile has been created, it is deleted unless the conversion completes
+    boolean created = false;
+    boolean converted = false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(srcName, "r");
+      try {
+        in = raf.getChannel();
+        if (!prepare(srcName))
+          return false;
+
+        DataFormat source = file.dataFormat;
+        if (source == DataFormat.REAL && format == DataFormat.INTEGER)
+          scanRanges();
+        setFormat(format);
+
+        C3DWriter writer = new C3DWriter();
+        if (!writer.writeMetadata(file))
+          return false;
+        FileOutputStream out = new FileOutputStream(outFile);
+        created = true;
+        try {
+          FileChannel channel = out.getChannel();
+          writeFully(channel, writer.buf);
+          convertData(channel, source, format);
+        } finally {
+          out.close();
+        }
+      } finally {
+        raf.close();
+      }
+
+      // the source stays in place if it cannot be replaced
+      if (outFile != target)
+        Files.move(outFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      converted = true;
+      return true;
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DConverter.convert): could not find file: " + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DConverter.convert): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    } finally {
+      if (created && !converted)
+        outFile.delete();
+    }
+  }
+
+  /** Computes the record layout and allocates the chunk buffers. */
+  private boolean prepare(String srcName) throws IOException {
+    dataStart = (file.dataStartBlock - 1) * 512L;
+    if (TrajectoryCodec.isCompressed(in, dataStart)) {
+      System.err.println("(C3DConverter.convert): " + srcName + " has a compressed data section.");
+      return false;
+    }
+
+    numFrames = file.last3DFrame - file.first3DFrame + 1;
+    frameSize = file.calcSizeOfFrame();
+    pointWords = file.num3DPoints * 4;
+    frameWords = pointWords + file.numAnalogChannelsPerVideoFrame;
+    numChannels = file.numAnalogChannels();
+    chunkFrames = Math.max(1, CHUNK_SIZE / Math.max(1, frameSize));
+
+    chunk = ByteBuffer.allocate(chunkFrames * frameSize);
+    chunkBuffer = new Buffer(chunk);
+    chunkBuffer.setOrder(file.byteOrder);
+    boolean integer = (file.dataFormat == DataFormat.INTEGER);
+    words = integer ? new short[chunkFrames * frameWords] : null;
+    values = integer ? null : new float[chunkFrames * frameWords];
+    maxCoordinate = 0;
+    return true;
+  }
+
+  /** Reads the records of frames [from, from + count) into words or values. */
+  private void readChunk(int from, int count) throws IOException {
+    chunk.clear();
+    chunk.limit(count * frameSize);
+    C3DReader.readFully(in, chunk, dataStart + (long) from * frameSize);
+    if (words != null)
+      chunkBuffer.getSShorts(0, words, 0, count * frameWords);
+    else
+      chunkBuffer.getFloats(0, values, 0, count * frameWords);
+  }
+
+  /** Finds the largest coordinate of the valid points and the range of each analog channel. */
+  private void scanRanges() throws IOException {
+    float max = 0;
+    channelMin = new float[numChannels];
+    channelMax = new float[numChannels];
+    Arrays.fill(channelMin, Float.POSITIVE_INFINITY);
+    Arrays.fill(channelMax, Float.NEGATIVE_INFINITY);
+    channelIntegral = new boolean[numChannels];
+    Arrays.fill(channelIntegral, true);
+
+    for (int from = 0; from < numFrames; from += chunkFrames) {
+      int count = Math.min(chunkFrames, numFrames - from);
+      readChunk(from, count);
+      for (int base = 0; base < count * frameWords; base += frameWords) {
+        for (int i = base; i < base + pointWords; i += 4) {
+          if ((short) values[i + 3] == -1)
+            continue;
+          max = Math.max(max, Math.max(Math.abs(values[i]), Math.max(Math.abs(values[i + 1]), Math
+              .abs(values[i + 2]))));
+        }
+        for (int i = base + pointWords, k = 0; i < base + frameWords; i++) {
+          channelMin[k] = Math.min(channelMin[k], values[i]);
+          channelMax[k] = Math.max(channelMax[k], values[i]);
+          channelIntegral[k] &= (values[i] == (int) values[i]);
+          if (++k == numChannels)
+            k = 0;
+        }
+      }
+    }
+    maxCoordinate = max;
+  }
+
+  /**
+   * Updates the header and parameters for the target format: the 3D scale factor (negative for
+   * REAL files), POINT:SCALE, and the analog calibration and format when converting to INTEGER.
+   */
+  private void setFormat(DataFormat format) {
+    float scale = Math.abs(file.scale3DFactor);
+    sourceScale = scale;
+    if (file.dataFormat == DataFormat.REAL && format == DataFormat.INTEGER) {
+      if (maxCoordinate > 0)
+        scale = maxCoordinate / Short.MAX_VALUE;
+      else if (scale == 0)
+        scale = 1;
+      setAnalogConversion();
+      String[] analogFormat = file.charParamData("ANALOG", "FORMAT", null);
+      if (analogFormat != null && analogFormat[0].trim().equals("UNSIGNED"))
+        analogFormat[0] = String.format("%-" + analogFormat[0].length() + "s", "SIGNED");
+      file.analogFormat = AnalogFormat.SIGNED;
+    }
+
+    file.dataFormat = format;
+    file.scale3DFactor = (format == DataFormat.REAL) ? -scale : scale;
+    float[] pointScale = file.floatParamData("POINT", "SCALE", null);
+    if (pointScale != null && pointScale.length > 0)
+      pointScale[0] = file.scale3DFactor;
+  }
+
+  /**
+   * Chooses how the raw REAL samples of each channel become 16-bit words. Channels of whole numbers
+   * that fit are kept as they are. The others are mapped linearly onto the full 16-bit range, and
+   * their ANALOG:SCALE and ANALOG:OFFSET are changed so that they calibrate to the same values; a
+   * constant channel has no range, so its samples become word 0 and its value is carried by the
+   * new offset.
+   */
+  private void setAnalogConversion() {
+    short[] offset = file.intParamData("ANALOG", "OFFSET", null);
+    float[] scale = file.floatParamData("ANALOG", "SCALE", null);
+    boolean calibrated = offset != null && scale != null && offset.length >= numChannels
+        && scale.length >= numChannels;
+
+    analogFrom = new float[numChannels];
+    analogRatio = new float[numChannels];
+    analogTo = new float[numChannels];
+    for (int k = 0; k < numChannels; k++) {
+      analogRatio[k] = 1;
+      float min = channelMin[k];
+      float max = channelMax[k];
+      if (channelIntegral[k] && min >= Short.MIN_VALUE && max <= Short.MAX_VALUE)
+        continue;
+      if (!calibrated) {
+        System.err.println("(C3DConverter.convert): analog channel " + (k + 1) + " has no "
+            + "calibration to rescale; its samples are rounded and clamped to 16 bits.");
+        continue;
+      }
+
+      // word = (raw - offset) * ratio + newOffset is centered in the 16-bit range, and since
+      // (word - newOffset) * scale / ratio = (raw - offset) * scale the calibration is unchanged;
+      // samples far from zero compared to their range are limited by the 16-bit new offset
+      float center = (offset[k] - (min + max) / 2);
+      float ratio = (max > min) ? (2f * Short.MAX_VALUE - 1) / (max - min) : 0;
+      if (ratio == 0 || Math.abs(center) * ratio > Short.MAX_VALUE - 1)
+        ratio = (Short.MAX_VALUE - 1) / Math.abs(center);
+      float newOffset = Math.round(center * ratio);
+      analogFrom[k] = offset[k];
+      analogRatio[k] = ratio;
+      analogTo[k] = newOffset;
+      scale[k] /= ratio;
+      offset[k] = (short) newOffset;
+    }
+  }
+
+  /** Converts the frame records chunk by chunk and pads the data section to a whole block. */
+  private void convertData(FileChannel channel, DataFormat source, DataFormat target)
+      throws IOException {
+    int targetSize = frameWords * ((target == DataFormat.INTEGER) ? 2 : 4);
+    ByteBuffer outChunk = ByteBuffer.allocateDirect(chunkFrames * targetSize);
+    outChunk.order(ByteOrder.LITTLE_ENDIAN);
+    short[] outWords = (target == DataFormat.INTEGER) ? new short[chunkFrames * frameWords] : null;
+    float[] outValues = (target == DataFormat.REAL) ? new float[chunkFrames * frameWords] : null;
+
+    long written = 0;
+    for (int from = 0; from < numFrames; from += chunkFrames) {
+      int count = Math.min(chunkFrames, numFrames - from);
+      int n = count * frameWords;
+      readChunk(from, count);
+
+      outChunk.clear();
+      if (source == DataFormat.INTEGER && target == DataFormat.REAL) {
+        integerToReal(words, outValues, n);
+        outChunk.asFloatBuffer().put(outValues, 0, n);
+      } else if (source == DataFormat.REAL && target == DataFormat.INTEGER) {
+        realToInteger(values, outWords, n);
+        outChunk.asShortBuffer().put(outWords, 0, n);
+      } else if (words != null) {
+        outChunk.asShortBuffer().put(words, 0, n);
+      } else {
+        outChunk.asFloatBuffer().put(values, 0, n);
+      }
+      outChunk.limit(count * targetSize);
+      written += outChunk.remaining();
+      writeFully(channel, outChunk);
+    }
+
+    // the data section ends on a block boundary
+    writeFully(channel, ByteBuffer.allocate((int) ((512 - written % 512) % 512)));
+  }
+
+  /**
+   * Coordinates are scaled; the fourth word of a point (camera mask and residual) and the analog
+   * words keep their values, as the REAL format stores them as floats of the same numbers.
+   */
+  private void integerToReal(short[] src, float[] dst, int n) {
+    float scale = Math.abs(file.scale3DFactor);
+    boolean unsigned = (file.analogFormat == AnalogFormat.UNSIGNED);
+    for (int base = 0; base < n; base += frameWords) {
+      for (int i = base; i < base + pointWords; i += 4) {
+        dst[i] = src[i] * scale;
+        dst[i + 1] = src[i + 1] * scale;
+        dst[i + 2] = src[i + 2] * scale;
+        dst[i + 3] = src[i + 3];
+      }
+      if (unsigned) {
+        for (int i = base + pointWords; i < base + frameWords; i++)
+          dst[i] = src[i] & 0xffff;
+      } else {
+        for (int i = base + pointWords; i < base + frameWords; i++)
+          dst[i] = src[i];
+      }
+    }
+  }
+
+  /**
+   * Coordinates are rounded to multiples of the new 3D scale factor, and the residual byte is
+   * converted from the old scale factor to the new one. Invalid points are written as in
+   * {@link C3DWriter}.
+   */
+  private void realToInteger(float[] src, short[] dst, int n) {
+    float inverse = 1 / file.scale3DFactor;
+    float residualRatio = (sourceScale == 0) ? 1 : sourceScale * inverse;
+    for (int base = 0; base < n; base += frameWords) {
+      for (int i = base; i < base + pointWords; i += 4) {
+        short word4 = (short) src[i + 3];
+        if (word4 == -1) {
+          dst[i] = 0;
+          dst[i + 1] = 0;
+          dst[i + 2] = 0;
+          dst[i + 3] = -1;
+          continue;
+        }
+        dst[i] = quantize(src[i] * inverse);
+        dst[i + 1] = quantize(src[i + 1] * inverse);
+        dst[i + 2] = quantize(src[i + 2] * inverse);
+        int residual = word4 & 0xff;
+        if (residual != 0)
+          residual = Math.max(1, Math.min(255, Math.round(residual * residualRatio)));
+        dst[i + 3] = (short) ((word4 & 0xff00) | residual);
+      }
+      for (int i = base + pointWords, k = 0; i < base + frameWords; i++) {
+        dst[i] = quantize((src[i] - analogFrom[k]) * analogRatio[k] + analogTo[k]);
+        if (++k == numChannels)
+          k = 0;
+      }
+    }
+  }
+
+  /** @return value rounded to the nearest 16-bit word, clamped to the range of a short. */
+  private static short quantize(float value) {
+    return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+    while (src.hasRemaining())
+      channel.write(src);
+  }
+}
@@ -1,5 +1,6 @@
 package c3dv.model;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -95,8 +96,14 @@ public class C3DFile {
   /** Retrieves a parameter group by its name */
   private Map<String, ParameterGroup> groupMap     = new HashMap<String, ParameterGroup>();
 
-  /** 3D & analog data for all frames */
-  public Frame[]                      frames;
+  /** 3D & analog data for all frames; null if the frames are decoded on demand by a frame source. */
+  public FrameStore                   frames;
+
+  /** Decodes frames on demand when the frames array has not been filled. */
+  FrameSource                         frameSource;
+
+  /** Data section the frames were read from, or null if it cannot be copied when writing. */
+  DataSection                         source;
 
   /** Byte order of the data read. */
   public ByteOrder                    byteOrder    = ByteOrder.LITTLE_ENDIAN;
@@ -107,6 +114,47 @@ public class C3DFile {
   public C3DFile() {
   }
 
+  /**
+   * @return A file with this file's header values, events and parameters but without frames. The
+   *         parameters are copied, so changes to the copy's parameters do not affect this file.
+   */
+  public C3DFile copyMetadata() {
+    C3DFile copy = new C3DFile();
+    copy.paramStartBlock = paramStartBlock;
+    copy.numParamBlocks = numParamBlocks;
+    copy.num3DPoints = num3DPoints;
+    copy.numAnalogChannelsPerVideoFrame = numAnalogChannelsPerVideoFrame;
+    copy.first3DFrame = first3DFrame;
+    copy.last3DFrame = last3DFrame;
+    copy.maxInterpolationGap = maxInterpolationGap;
+    copy.scale3DFactor = scale3DFactor;
+    copy.dataStartBlock = dataStartBlock;
+    copy.numAnalogSamplesPerFrame = numAnalogSamplesPerFrame;
+    copy.framesPerSecond = framesPerSecond;
+    copy.rangeAndLabelDataPresent = rangeAndLabelDataPresent;
+    copy.rangeAndLabelStartBlock = rangeAndLabelStartBlock;
+    copy.supports4CharEventLabels = supports4CharEventLabels;
+    copy.numDefinedTimeEvents = numDefinedTimeEvents;
+    copy.eventTimes = (eventTimes == null) ? null : eventTimes.clone();
+    copy.eventFlags = (eventFlags == null) ? null : eventFlags.clone();
+    copy.eventLabels = (eventLabels == null) ? null : eventLabels.clone();
+    copy.dataFormat = dataFormat;
+    copy.byteOrder = byteOrder;
+    copy.analogFormat = analogFormat;
+
+    for (ParameterGroup group : groups) {
+      ParameterGroup groupCopy = new ParameterGroup(group.name, group.id, group.description,
+          group.locked);
+      for (Parameter param : group.parameters) {
+        Parameter paramCopy = param.copy();
+        paramCopy.group = groupCopy;
+        groupCopy.addParameter(paramCopy);
+      }
+      copy.addGroup(groupCopy);
+    }
+    return copy;
+  }
+
   public List<ParameterGroup> getGroups() {
     return groups;
   }
@@ -127,6 +175,77 @@ public class C3DFile {
     return group.paramMap.get(paramName);
   }
 
+  /**
+   * Stores the frame range first3DFrame to last3DFrame in POINT:FRAMES and in
+   * TRIAL:ACTUAL_START_FIELD and ACTUAL_END_FIELD (two words each, low word first). The header only
+   * holds 16-bit frame numbers, so the parameters are added (along with their groups) if the file
+   * does not have them and the range does not fit in the header, or if add is true; otherwise only
+   * the parameters the file has are updated.
+   *
+   * @return False if the file has one of the parameters with a different type or too few values.
+   */
+  public boolean storeFrameRange(boolean add) {
+    if (!canHoldFrames("POINT", "FRAMES", 1) || !canHoldFrames("TRIAL", "ACTUAL_START_FIELD", 2)
+        || !canHoldFrames("TRIAL", "ACTUAL_END_FIELD", 2))
+      return false;
+
+    add |= last3DFrame > 0xffff;
+    short[] frames = frameRangeData("POINT", "FRAMES", 1, "Number of frames", add);
+    short[] start = frameRangeData("TRIAL", "ACTUAL_START_FIELD", 2,
+        "First frame (low, high word)", add);
+    short[] end = frameRangeData("TRIAL", "ACTUAL_END_FIELD", 2, "Last frame (low, high word)", add);
+
+    if (frames != null)
+      frames[0] = (short) Math.min(last3DFrame - first3DFrame + 1, 0xffff);
+    if (start != null) {
+      start[0] = (short) first3DFrame;
+      start[1] = (short) (first3DFrame >>> 16);
+    }
+    if (end != null) {
+      end[0] = (short) last3DFrame;
+      end[1] = (short) (last3DFrame >>> 16);
+    }
+    return true;
+  }
+
+  /** @return False if the file has groupName:name but it is not an Int parameter of count values. */
+  private boolean canHoldFrames(String groupName, String name, int count) {
+    Parameter param = getParameter(groupName, name);
+    if (param == null || (param instanceof IntParameter && ((IntParameter) param).getData() != null
+        && ((IntParameter) param).getData().length >= count))
+      return true;
+    System.err.println("(C3DFile.storeFrameRange): " + groupName + ":" + name + " must have " + count
+        + " Int value(s).");
+    return false;
+  }
+
+  /**
+   * @return The data of the Int parameter groupName:name, which is added with count values (along
+   *         with its group) if the file does not have it and add is true; otherwise null.
+   */
+  private short[] frameRangeData(String groupName, String name, int count, String description,
+      boolean add) {
+    Parameter param = getParameter(groupName, name);
+    if (param == null) {
+      if (!add)
+        return null;
+      ParameterGroup group = getGroup(groupName);
+      if (group == null) {
+        // group IDs are negative; parameters refer to their group by the positive ID
+        int id = 0;
+        for (ParameterGroup g : groups)
+          id = Math.min(id, g.id);
+        group = new ParameterGroup(groupName, id - 1, null, false);
+        addGroup(group);
+      }
+      param = new IntParameter(name, -group.id, new int[] { count }, new Buffer(new byte[2 * count]),
+          description, false);
+      param.group = group;
+      group.addParameter(param);
+    }
+    return ((IntParameter) param).getData();
+  }
+
   public int calcSizeOfParameterSection() {
     int size = 4; // header is 4 bytes
     for (ParameterGroup group : groups) {
@@ -147,40 +266,135 @@ public class C3DFile {
     return size;
   }
 
-  /** Calculates number of bytes the data section would occupy using the current frame data. */
-  public int calcSizeOfDataSection() {
+  /** @return The number of frames of 3D & analog data. */
+  public int getNumFrames() {
+    if (frames != null)
+      return frames.numFrames;
+    return (frameSource == null) ? 0 : frameSource.getNumFrames();
+  }
+
+  /** @return The frame at index (0-based), decoding it first if necessary. */
+  public Frame getFrame(int index) {
+    return (frames != null) ? frames.getFrame(index) : frameSource.getFrame(index);
+  }
+
+  /** Releases the storage held by the decoded frames (e.g. off-heap buffers). */
+  public void close() {
+    if (frames != null)
+      frames.close();
+    frames = null;
+    frameSource = null;
+  }
+
+  /** @return The number of analog channels sampled in each analog sample. */
+  public int numAnalogChannels() {
+    return numAnalogSamplesPerFrame == 0 ? 0 : numAnalogChannelsPerVideoFrame / numAnalogSamplesPerFrame;
+  }
+
+  /** Calculates number of bytes a single frame occupies in the data section. */
+  public int calcSizeOfFrame() {
     int sizeElement = (dataFormat == DataFormat.INTEGER) ? 2 : 4;
     int size3D = num3DPoints * 4 * sizeElement;
     int sizeAnalog = numAnalogChannelsPerVideoFrame * sizeElement;
-    int sizeFrame = size3D + sizeAnalog;
-    return frames.length * sizeFrame;
+    return size3D + sizeAnalog;
+  }
+
+  /** Calculates number of bytes the data section would occupy using the current frame data. */
+  public long calcSizeOfDataSection() {
+    return (long) getNumFrames() * calcSizeOfFrame();
   }
   
   public short[] intParamData(String groupName, String paramName, short[] defaultValue) {
     Parameter p = getParameter(groupName, paramName);
     if (p == null || !(p instanceof IntParameter)) return defaultValue;
     IntParameter pInt = (IntParameter)p;
-    return pInt.data == null ? defaultValue : pInt.data;
+    return pInt.getData() == null ? defaultValue : pInt.getData();
   }
   
   public String[] charParamData(String groupName, String paramName, String[] defaultValue) {
     Parameter p = getParameter(groupName, paramName);
     if (p == null || !(p instanceof CharParameter)) return defaultValue;
     CharParameter pChar = (CharParameter)p;
-    return pChar.data == null ? defaultValue : pChar.data;
+    return pChar.getData() == null ? defaultValue : pChar.getData();
   }
   
   public float[] floatParamData(String groupName, String paramName, float[] defaultValue) {
     Parameter p = getParameter(groupName, paramName);
     if (p == null || !(p instanceof FloatParameter)) return defaultValue;
     FloatParameter pFloat = (FloatParameter)p;
-    return pFloat.data == null ? defaultValue : pFloat.data;
+    return pFloat.getData() == null ? defaultValue : pFloat.getData();
   }
   
   public int[] byteParamData(String groupName, String paramName, int[] defaultValue) {
     Parameter p = getParameter(groupName, paramName);
     if (p == null || !(p instanceof ByteParameter)) return defaultValue;
     ByteParameter pByte = (ByteParameter)p;
-    return pByte.data == null ? defaultValue : pByte.data;
+    return pByte.getData() == null ? defaultValue : pByte.getData();
+  }
+
+  /**
+   * Describes the data section of the file that the frames were decoded from, so that a writer can
+   * copy its bytes instead of encoding the frames again.
+   */
+  static class DataSection {
+    final File        file;
+    final long        length;
+    final long        lastModified;
+    final long        start;
+    final long        size;
+    final int         numFrames;
+    final FrameSource frames;
+    final DataFormat  dataFormat;
+    final ByteOrder   byteOrder;
+    final int         num3DPoints;
+    final int         numAnalogChannelsPerVideoFrame;
+    final int         numAnalogSamplesPerFrame;
+    final float       scale3DFactor;
+
+    DataSection(File file, C3DFile c3d, int frameSize) {
+      this.file = file;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+      this.start = (c3d.dataStartBlock - 1) * 512L;
+      this.numFrames = c3d.getNumFrames();
+      this.size = (long) numFrames * frameSize;
+      this.frames = (c3d.frames != null) ? c3d.frames : c3d.frameSource;
+      this.dataFormat = c3d.dataFormat;
+      this.byteOrder = c3d.byteOrder;
+      this.num3DPoints = c3d.num3DPoints;
+      this.numAnalogChannelsPerVideoFrame = c3d.numAnalogChannelsPerVideoFrame;
+      this.numAnalogSamplesPerFrame = c3d.numAnalogSamplesPerFrame;
+      this.scale3DFactor = c3d.scale3DFactor;
+    }
+
+    /** @return True if frames were changed since they were read from the section. */
+    private static boolean isModified(FrameSource frames) {
+      if (frames == null)
+        return false;
+      if (frames instanceof FrameStore)
+        return ((FrameStore) frames).isModified();
+      if (frames instanceof MappedFrameSource)
+        return ((MappedFrameSource) frames).isModified();
+      return true;
+    }
+
+    /**
+     * @return True if the section can be copied into a little-endian file written from c3d: c3d
+     *         still has the same frames, unmodified and with the same layout, and the source file
+     *         has not changed since it was read.
+     */
+    boolean matches(C3DFile c3d) {
+      // INTEGER values are little-endian in DEC files too; only their floats differ
+      boolean littleEndian = byteOrder == ByteOrder.LITTLE_ENDIAN
+          || (byteOrder == ByteOrder.MIDDLE_ENDIAN && dataFormat == DataFormat.INTEGER);
+      FrameSource current = (c3d.frames != null) ? c3d.frames : c3d.frameSource;
+      return littleEndian && current == frames && !isModified(current)
+          && c3d.getNumFrames() == numFrames && c3d.dataFormat == dataFormat
+          && c3d.num3DPoints == num3DPoints
+          && c3d.numAnalogChannelsPerVideoFrame == numAnalogChannelsPerVideoFrame
+          && c3d.numAnalogSamplesPerFrame == numAnalogSamplesPerFrame
+          && c3d.scale3DFactor == scale3DFactor && file.length() == length
+          && file.lastModified() == lastModified && length >= start + size;
+    }
   }
 }
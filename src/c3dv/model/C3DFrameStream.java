@@ -0,0 +1,186 @@
+package c3dv.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the frames of a C3D file one at a time, in order, without materializing the frames array.
+ * Every frame is decoded into the same {@link Frame} instance, so memory use is constant no matter
+ * how long the trial is. Obtain a stream with {@link C3DReader#openStream(String)}, or with
+ * {@link C3DReader#openStream(java.io.InputStream)} to read from a pipe or an archive entry; the
+ * data section is read sequentially, and frames are decoded as soon as they have been received. A
+ * compressed data section is decoded one block of frames at a time.
+ * 
+ * <pre>
+ * C3DFrameStream stream = new C3DReader().openStream(fileName);
+ * while (stream.next()) {
+ *   Frame frame = stream.getFrame();
+ *   ...
+ * }
+ * stream.close();
+ * 
+ * C3DFrameStream stream = new C3DReader().openStream(new GZIPInputStream(in));
+ * </pre>
+ * 
+ * @author Justin Stoecker
+ */
+public class C3DFrameStream {
+
+  /** Approximate number of bytes read from the file at a time. */
+  static final int           READ_SIZE  = 64 * 1024;
+
+  private final C3DFile      file;
+  private final ReadableByteChannel channel;
+  private final FrameDecoder decoder;
+  private final Frame        frame;
+  private final ByteBuffer   chunk;
+  private final Buffer       buf;
+  private final int          frameSize;
+  private int                numFrames;
+  private final TrajectoryCodec.SectionReader section;
+  private final FrameStore   block;
+  private int                frameIndex = -1;
+  private int                chunkFrame;
+  private int                chunkFrames;
+  private int                chunkBytes;
+  private boolean            unbounded;
+
+  /**
+   * @param channel Channel positioned at the first frame record, or at the first block (after the
+   *          section header) if the data section is compressed.
+   * @param head Bytes of the data section that were already read from the channel, or null.
+   */
+  C3DFrameStream(C3DFile file, ReadableByteChannel channel, FrameDecoder decoder,
+      boolean compressed, ByteBuffer head) {
+    this.file = file;
+    this.channel = channel;
+    this.decoder = decoder;
+    this.frame = decoder.newFrame();
+    this.frameSize = decoder.frameSize;
+    this.numFrames = file.last3DFrame - file.first3DFrame + 1;
+    int framesPerChunk = Math.max(1, READ_SIZE / Math.max(1, frameSize));
+    this.chunk = ByteBuffer.allocate(Math.max(framesPerChunk * frameSize,
+        TrajectoryCodec.SECTION_HEADER_SIZE));
+    this.buf = new Buffer(chunk);
+    this.buf.setOrder(file.byteOrder);
+    if (head != null && !compressed) {
+      chunk.put(head);
+      chunkBytes = chunk.position();
+    }
+    this.section = compressed ? new TrajectoryCodec.SectionReader(file, channel, decoder) : null;
+    this.block = compressed ? decoder.newStore(TrajectoryCodec.BLOCK_FRAMES, false) : null;
+  }
+
+  /**
+   * Reads frames until the channel ends or is closed instead of stopping after the number of frames
+   * in the header. Used for live sources, which send frames for as long as they are capturing.
+   */
+  void setUnbounded() {
+    unbounded = true;
+    numFrames = Integer.MAX_VALUE;
+  }
+
+  /** @return The header and parameters of the file; its frames array is not filled. */
+  public C3DFile getFile() {
+    return file;
+  }
+
+  /** @return The number of frames in the stream. */
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  /** @return Index (0-based) of the frame most recently decoded by {@link #next()}. */
+  public int getFrameIndex() {
+    return frameIndex;
+  }
+
+  /**
+   * @return The frame most recently decoded by {@link #next()}. The same instance is returned for
+   *         every frame, so its values must be copied if they are needed after the next call.
+   */
+  public Frame getFrame() {
+    return frame;
+  }
+
+  /**
+   * Decodes the next frame into the stream's frame.
+   * 
+   * @return False if there are no more frames or the file could not be read.
+   */
+  public boolean next() {
+    if (frameIndex + 1 >= numFrames)
+      return false;
+
+    if (chunkFrame == chunkFrames && !readChunk())
+      return false;
+
+    if (section != null)
+      frame.copyFrom(block.getFrame(chunkFrame));
+    else
+      decoder.decode(buf, chunkFrame * frameSize, frame);
+    chunkFrame++;
+    frameIndex++;
+    return true;
+  }
+
+  /** Closes the underlying file or channel. */
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("(C3DFrameStream.close): " + e.getMessage());
+    }
+  }
+
+  private boolean readChunk() {
+    if (section != null)
+      return readBlock();
+
+    // keep the bytes of a frame that was only partly received by the previous read
+    chunk.limit(chunkBytes);
+    chunk.position(chunkFrames * frameSize);
+    chunk.compact();
+
+    int remainingFrames = numFrames - frameIndex - 1;
+    chunk.limit((int) Math.min(chunk.capacity(), (long) remainingFrames * frameSize));
+    try {
+      // decode the frames that have arrived instead of waiting for the chunk to fill
+      while (chunk.position() < frameSize) {
+        if (channel.read(chunk) < 0) {
+          if (unbounded && chunk.position() == 0)
+            return false;
+          throw new EOFException("unexpected end of data section at frame " + (frameIndex + 1));
+        }
+      }
+      chunkBytes = chunk.position();
+      chunkFrames = (frameSize == 0) ? remainingFrames : chunkBytes / frameSize;
+      chunkFrame = 0;
+      return true;
+    } catch (AsynchronousCloseException e) {
+      return false; // closed by another thread to stop reading
+    } catch (IOException e) {
+      System.err.println("(C3DFrameStream.next): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private boolean readBlock() {
+    try {
+      if (section.next(false) < 0)
+        return false;
+      chunkFrames = section.getBlockFrames();
+      chunkFrame = 0;
+      section.decode(0, chunkFrames, block, 0);
+      return true;
+    } catch (IOException e) {
+      System.err.println("(C3DFrameStream.next): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+}
@@ -1,13 +1,22 @@
 package c3dv.model;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import c3dv.model.Buffer.ByteOrder;
 import c3dv.model.C3DFile.AnalogFormat;
@@ -22,20 +31,118 @@ public class C3DReader {
 
   private C3DFile                          file;
   private Buffer                           buf;
+  private Buffer                           section;
   private HashMap<Integer, ParameterGroup> groupMap;
   private ArrayList<Parameter>             parameters;
-  private PointReader                      pointParser;
-  private ChannelReader                    analogParser;
+  private boolean                          parallel;
+  private boolean                          offHeap;
+  private String[]                         pointSelection;
+  private String[]                         analogSelection;
+  private FrameCache                       cache;
+  private ProgressListener                 progressListener;
+  private volatile boolean                 cancelled;
+  private long                             bytesRead;
+  private long                             totalBytes;
+  private int                              totalFrames;
+  private final AtomicInteger              framesDecoded  = new AtomicInteger();
 
-  private short[]                          analogOffset;
-  private float[]                          analogGenScale;
-  private float[]                          analogScale;
+  /** Number of frames decoded by a single task (and between progress updates). */
+  static final int                         PARALLEL_GRAIN = 256;
+
+  /** Largest number of data section bytes held in memory at once while loading. */
+  static final int                         WINDOW_SIZE    = 64 << 20;
+
+  /** Number of bytes read from the file between progress updates. */
+  static final int                         READ_CHUNK     = 1 << 20;
+
+  /**
+   * Receives progress updates while {@link C3DReader#load(String)} or
+   * {@link C3DReader#loadMapped(String)} runs.
+   */
+  public interface ProgressListener {
+    /**
+     * Called periodically from the loading thread(s) with the number of bytes read and frames
+     * decoded so far.
+     */
+    void progress(long bytesRead, long totalBytes, int framesDecoded, int totalFrames);
+  }
+
+  public void setProgressListener(ProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Asks a load in progress on another thread to stop; the load then returns null. The next load
+   * started with this reader is not cancelled.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /** @return True if the last load was cancelled. */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** Clears the cancel request and progress counts left over from a previous load. */
+  private void startLoad() {
+    cancelled = false;
+    bytesRead = 0;
+    totalBytes = 0;
+    totalFrames = 0;
+    framesDecoded.set(0);
+  }
+
+  /**
+   * If true, {@link #load(String)} decodes the data section on all available processors. Every
+   * frame starts at a fixed offset, so frames are decoded independently and the result is identical
+   * to sequential decoding.
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * If true, {@link #load(String)} stores decoded samples in direct buffers outside of the Java
+   * heap. Call {@link C3DFile#close()} when the file is no longer needed, so that they can be
+   * released (see {@link DirectFrameStore}).
+   */
+  public void setOffHeap(boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * If set, {@link #load(String)} (and {@link #loadMapped(String)} for a compressed data section)
+   * maps a trial's decoded frames from the cache when it has been loaded before (ignoring
+   * {@link #setOffHeap(boolean)}), and adds newly decoded trials to it.
+   */
+  public void setCache(FrameCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Restricts loading to the points with the given labels (as listed in POINT:LABELS), in the
+   * given order. The other points are skipped while decoding, and the loaded file's header and
+   * POINT parameters only describe the selected points. Pass null to load all points.
+   */
+  public void setPointSelection(String... labels) {
+    this.pointSelection = labels;
+  }
+
+  /**
+   * Restricts loading to the analog channels with the given labels (as listed in ANALOG:LABELS), in
+   * the given order. Pass null to load all channels.
+   */
+  public void setAnalogSelection(String... labels) {
+    this.analogSelection = labels;
+  }
 
   public C3DFile load(String fileName) {
+    startLoad();
     file = new C3DFile();
 
-    // load data into memory
-    if (!loadData(fileName))
+    // read header and parameter blocks
+    if (!readMetadata(fileName))
       return null;
 
     // parse header block
@@ -46,33 +153,491 @@ public class C3DReader {
     if (!parseParameters())
       return null;
 
-    // parse data blocks
-    parseData();
+    FrameDecoder decoder = newDecoder();
+    if (decoder == null)
+      return null;
+
+    // read and parse data blocks
+    if (!readAllFrames(fileName, decoder))
+      return null;
+
+    recordSource(fileName, decoder);
+    return file;
+  }
+
+  /**
+   * Decodes every frame of the file, or maps them from the cache if the trial has been decoded
+   * before. Newly decoded frames are added to the cache.
+   */
+  private boolean readAllFrames(String fileName, FrameDecoder decoder) {
+    int numFrames = file.last3DFrame - file.first3DFrame + 1;
+    String cacheKey = null;
+    long checksum = -1;
+    if (cache != null) {
+      File source = new File(fileName);
+      cacheKey = cache.key(source, buf.array(), pointSelection, analogSelection);
+      checksum = (cacheKey == null) ? -1 : cache.checksum(source, (file.dataStartBlock - 1) * 512L);
+      file.frames = (checksum < 0) ? null : cache.get(cacheKey, checksum, numFrames,
+          file.num3DPoints, file.numAnalogSamplesPerFrame, file.numAnalogChannels());
+      if (file.frames != null)
+        return true;
+    }
+
+    if (!readData(fileName, decoder, 0, numFrames))
+      return false;
+
+    if (checksum >= 0)
+      cache.put(cacheKey, checksum, file.frames);
+    return true;
+  }
+
+  /**
+   * Reads only frames fromFrame through toFrame (inclusive frame numbers, as in first3DFrame and
+   * last3DFrame). The header and parameters are read first, then the requested frames are read
+   * directly from their offset in the data section, so the time and memory needed depend on the
+   * size of the range rather than the size of the file. The returned file's first3DFrame and
+   * last3DFrame, its frame count parameters and its events describe the loaded range, so it can be
+   * written as a trial of its own.
+   */
+  public C3DFile load(String fileName, int fromFrame, int toFrame) {
+    startLoad();
+    file = new C3DFile();
+
+    if (!readMetadata(fileName))
+      return null;
+
+    if (!parseHeader())
+      return null;
+
+    if (!parseParameters())
+      return null;
+
+    if (fromFrame < file.first3DFrame || toFrame > file.last3DFrame || fromFrame > toFrame) {
+      System.err.println("(C3DReader.load): frames " + fromFrame + "-" + toFrame
+          + " are outside of the file's range " + file.first3DFrame + "-" + file.last3DFrame + ".");
+      return null;
+    }
+
+    FrameDecoder decoder = newDecoder();
+    if (decoder == null)
+      return null;
+
+    if (!readData(fileName, decoder, fromFrame - file.first3DFrame, toFrame - fromFrame + 1))
+      return null;
+
+    file.first3DFrame = fromFrame;
+    file.last3DFrame = toFrame;
+    if (!selectFrameRange()) {
+      file.close();
+      return null;
+    }
+
+    return file;
+  }
+
+  /**
+   * Opens a file without reading its data section into memory. The data section is memory-mapped
+   * and each frame is decoded only when it is first accessed through {@link C3DFile#getFrame(int)},
+   * so the time to open a file does not depend on the number of frames it contains. The progress
+   * listener is told when the header and parameters have been read; frames are only reported if the
+   * data section is compressed and has to be decoded (or mapped from the cache) here.
+   */
+  public C3DFile loadMapped(String fileName) {
+    startLoad();
+    file = new C3DFile();
+
+    if (!readMetadata(fileName))
+      return null;
+    if (progressListener != null)
+      progressListener.progress(buf.array().length, buf.array().length, 0, 0);
+
+    if (!parseHeader())
+      return null;
+
+    if (!parseParameters())
+      return null;
+
+    FrameDecoder decoder = newDecoder();
+    if (decoder == null)
+      return null;
+
+    boolean compressed;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        compressed = TrajectoryCodec.isCompressed(channel, (file.dataStartBlock - 1) * 512L);
+        if (!compressed)
+          file.frameSource = new MappedFrameSource(file, new File(fileName), channel, decoder);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      System.err.println("(C3DReader.loadMapped): " + e.getMessage());
+      e.printStackTrace();
+      return null;
+    }
+
+    // compressed frames cannot be located without decoding their block, so they are decoded now
+    if (compressed && !readAllFrames(fileName, decoder))
+      return null;
 
+    recordSource(fileName, decoder);
     return file;
   }
 
-  private boolean loadData(String fileName) {
+  /**
+   * Remembers the data section that the frames were read from, so that {@link C3DWriter} can copy it
+   * while the frames are unchanged. Only whole, uncompressed data sections read without a selection
+   * are recorded.
+   */
+  private void recordSource(String fileName, FrameDecoder decoder) {
+    if (pointSelection != null || analogSelection != null)
+      return;
+
     try {
-      File file = new File(fileName);
-      FileInputStream fis = new FileInputStream(file);
-      BufferedInputStream bis = new BufferedInputStream(fis);
-      DataInputStream in = new DataInputStream(bis);
+      RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+      try {
+        if (TrajectoryCodec.isCompressed(raf.getChannel(), (file.dataStartBlock - 1) * 512L))
+          return;
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      return;
+    }
 
-      byte[] fileData = new byte[(int) file.length()];
-      in.readFully(fileData);
-      buf = new Buffer(fileData);
+    file.source = new C3DFile.DataSection(new File(fileName), file, decoder.frameSize);
+  }
 
-      in.close();
-      return true;
+  /**
+   * Reads only the header and parameter sections of a file. The data section is never read, so the
+   * returned file has no frames (frames is null), but all header values and parameters are
+   * available. The time taken depends on the size of the parameter section, not the trial length.
+   */
+  public C3DFile loadMetadata(String fileName) {
+    file = new C3DFile();
+
+    if (!readMetadata(fileName))
+      return null;
+
+    if (!parseHeader())
+      return null;
+
+    if (!parseParameters())
+      return null;
+
+    return file;
+  }
+
+  /**
+   * Opens a file for a single sequential pass over its frames. Only the header and parameters are
+   * parsed here; frames are decoded one at a time by the returned stream, which must be closed.
+   */
+  public C3DFrameStream openStream(String fileName) {
+    file = new C3DFile();
+
+    if (!readMetadata(fileName))
+      return null;
+
+    if (!parseHeader())
+      return null;
+
+    if (!parseParameters())
+      return null;
+
+    FrameDecoder decoder = newDecoder();
+    if (decoder == null)
+      return null;
+
+    try {
+      // the stream closes the file; it is only closed here if the stream could not be created
+      RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+      boolean opened = false;
+      try {
+        FileChannel channel = raf.getChannel();
+        long dataStart = (file.dataStartBlock - 1) * 512L;
+        boolean compressed = TrajectoryCodec.isCompressed(channel, dataStart);
+        channel.position(compressed ? dataStart + TrajectoryCodec.SECTION_HEADER_SIZE : dataStart);
+        C3DFrameStream stream = new C3DFrameStream(file, channel, decoder, compressed, null);
+        opened = true;
+        return stream;
+      } finally {
+        if (!opened)
+          raf.close();
+      }
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DReader.openStream): could not find file: " + e.getMessage());
+      return null;
+    } catch (IOException e) {
+      System.err.println("(C3DReader.openStream): " + e.getMessage());
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Opens a C3D file that is read sequentially from in, such as a pipe or an entry of a zip or gzip
+   * archive. See {@link #openStream(ReadableByteChannel)}.
+   */
+  public C3DFrameStream openStream(InputStream in) {
+    return openStream(Channels.newChannel(in));
+  }
+
+  /**
+   * Opens a C3D file that is read sequentially from channel, which is never positioned. Only the
+   * header and parameter blocks are buffered; frames are decoded by the returned stream as soon as
+   * they are received, and closing the stream closes the channel. If null is returned, the channel
+   * is left open.
+   */
+  public C3DFrameStream openStream(ReadableByteChannel channel) {
+    file = new C3DFile();
+
+    try {
+      if (!readMetadata(channel))
+        return null;
+
+      if (!parseHeader())
+        return null;
+
+      if (!parseParameters())
+        return null;
+
+      FrameDecoder decoder = newDecoder();
+      if (decoder == null)
+        return null;
+
+      // without seeking, the data section can only be reached if it follows the parameters
+      long gap = (file.dataStartBlock - 1) * 512L - buf.array().length;
+      if (gap < 0) {
+        System.err.println("(C3DReader.openStream): data section starts before the end of the "
+            + "parameter section.");
+        return null;
+      }
+      skipFully(channel, gap);
+
+      // the first bytes tell whether the data section is compressed; if it is not, they are the
+      // start of the first frame and are handed to the stream
+      ByteBuffer head = ByteBuffer.allocate(TrajectoryCodec.SECTION_HEADER_SIZE);
+      while (head.hasRemaining()) {
+        if (channel.read(head) < 0)
+          break;
+      }
+      head.flip();
+      boolean compressed = TrajectoryCodec.isSectionHeader(head);
+      return new C3DFrameStream(file, channel, decoder, compressed, head);
+    } catch (IOException e) {
+      System.err.println("(C3DReader.openStream): " + e.getMessage());
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Reads the header block and the parameter blocks sequentially from channel. Unlike
+   * {@link #readMetadata(String)}, the blocks between the header and the parameters are read too.
+   */
+  private boolean readMetadata(ReadableByteChannel channel) throws IOException {
+    byte[] header = new byte[512];
+    readFully(channel, ByteBuffer.wrap(header));
+    int paramStartBlock = header[0] & 0xff;
+    if (paramStartBlock < 2) {
+      System.err.println("(C3DReader.readMetadata): invalid parameter section start block.");
+      return false;
+    }
+
+    // the number of parameter blocks is the third byte of the first parameter block
+    int paramStart = (paramStartBlock - 1) * 512;
+    byte[] start = Arrays.copyOf(header, paramStart + 512);
+    readFully(channel, ByteBuffer.wrap(start, 512, paramStart));
+    int numParamBlocks = Math.max(1, start[paramStart + 2] & 0xff);
+
+    byte[] data = Arrays.copyOf(start, paramStart + numParamBlocks * 512);
+    readFully(channel, ByteBuffer.wrap(data, start.length, data.length - start.length));
+
+    buf = new Buffer(data);
+    return true;
+  }
+
+  /**
+   * Reads the header block and the parameter blocks with positioned reads. The buffer spans the
+   * file from its start to the end of the parameter section so that absolute offsets still apply;
+   * blocks between the header and the parameters (if any) are left empty.
+   */
+  private boolean readMetadata(String fileName) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+      FileChannel channel = raf.getChannel();
+      try {
+        byte[] header = new byte[512];
+        readFully(channel, ByteBuffer.wrap(header), 0);
+        int paramStartBlock = header[0] & 0xff;
+        if (paramStartBlock < 2) {
+          System.err.println("(C3DReader.readMetadata): invalid parameter section start block.");
+          return false;
+        }
+
+        // the number of parameter blocks is the third byte of the first parameter block
+        long paramStart = (paramStartBlock - 1) * 512L;
+        byte[] firstParamBlock = new byte[512];
+        readFully(channel, ByteBuffer.wrap(firstParamBlock), paramStart);
+        int numParamBlocks = Math.max(1, firstParamBlock[2] & 0xff);
+
+        byte[] data = new byte[(paramStartBlock - 1 + numParamBlocks) * 512];
+        System.arraycopy(header, 0, data, 0, 512);
+        System.arraycopy(firstParamBlock, 0, data, (int) paramStart, 512);
+        readFully(channel, ByteBuffer.wrap(data, (int) paramStart + 512, (numParamBlocks - 1) * 512),
+            paramStart + 512);
+
+        buf = new Buffer(data);
+        return true;
+      } finally {
+        raf.close();
+      }
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DReader.readMetadata): could not find file: " + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DReader.readMetadata): " + e.getMessage());
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Reads and decodes numFrames frame records, starting at frame index firstFrame (0-based). The
+   * records are read with positioned reads into a window of whole frames (at most WINDOW_SIZE
+   * bytes), and each window is decoded before the next one is read, so the file size is limited by
+   * the decoded frames rather than by the size of a Java array. Compressed data sections (see
+   * {@link TrajectoryCodec}) are decoded block by block instead.
+   */
+  private boolean readData(String fileName, FrameDecoder decoder, int firstFrame, int numFrames) {
+    if (!decoder.fitsStore(numFrames)) {
+      System.err.println("(C3DReader.readData): " + numFrames + " frames have more values than a "
+          + "frame store can index; load a range of frames or select fewer points and channels.");
+      return false;
+    }
+    file.frames = decoder.newStore(numFrames, offHeap);
+    totalFrames = numFrames;
+
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        if (TrajectoryCodec.isCompressed(channel, (file.dataStartBlock - 1) * 512L))
+          readCompressed(channel, decoder, firstFrame, numFrames);
+        else
+          readRecords(channel, decoder, firstFrame, numFrames);
+      } finally {
+        raf.close();
+      }
     } catch (FileNotFoundException e) {
-      System.err.println("(C3DReader.loadData): could not find file: " + e.getMessage());
+      System.err.println("(C3DReader.readData): could not find file: " + e.getMessage());
+      file.close();
       return false;
     } catch (IOException e) {
-      System.err.println("(C3DReader.loadData): " + e.getMessage());
+      System.err.println("(C3DReader.readData): " + e.getMessage());
       e.printStackTrace();
+      file.close();
       return false;
     }
+
+    if (cancelled) {
+      file.close();
+      return false;
+    }
+
+    return true;
+  }
+
+  /** Reads and decodes uncompressed frame records one window at a time. */
+  private void readRecords(FileChannel channel, FrameDecoder decoder, int firstFrame, int numFrames)
+      throws IOException {
+    int frameSize = decoder.frameSize;
+    int windowFrames = Math.max(1, Math.min(numFrames, WINDOW_SIZE / Math.max(1, frameSize)));
+    long position = (file.dataStartBlock - 1) * 512L + (long) firstFrame * frameSize;
+    totalBytes = (long) numFrames * frameSize;
+
+    ByteBuffer window = ByteBuffer.allocate(windowFrames * frameSize);
+    buf = new Buffer(window);
+    buf.setOrder(file.byteOrder);
+
+    for (int from = 0; from < numFrames && !cancelled; from += windowFrames) {
+      int to = Math.min(numFrames, from + windowFrames);
+      int length = (to - from) * frameSize;
+
+      window.clear();
+      for (int offset = 0; offset < length && !cancelled; offset += READ_CHUNK) {
+        window.limit(Math.min(length, offset + READ_CHUNK));
+        readFully(channel, window, position + offset);
+        bytesRead += window.limit() - offset;
+        reportProgress();
+      }
+      position += length;
+
+      if (!cancelled)
+        decodeWindow(decoder, from, to);
+    }
+  }
+
+  /**
+   * Decodes frames from a compressed data section. Blocks before firstFrame are stepped over using
+   * their lengths, and reading stops after the block that holds the last requested frame.
+   */
+  private void readCompressed(FileChannel channel, FrameDecoder decoder, int firstFrame,
+      int numFrames) throws IOException {
+    channel.position((file.dataStartBlock - 1) * 512L + TrajectoryCodec.SECTION_HEADER_SIZE);
+    TrajectoryCodec.SectionReader reader = new TrajectoryCodec.SectionReader(file, channel, decoder);
+    totalBytes = channel.size() - (file.dataStartBlock - 1) * 512L;
+
+    int endFrame = firstFrame + numFrames;
+    while (!cancelled) {
+      int blockStart = reader.getBlockStart() + TrajectoryCodec.BLOCK_FRAMES;
+      if (blockStart >= endFrame)
+        break;
+      boolean skip = blockStart + TrajectoryCodec.BLOCK_FRAMES <= firstFrame;
+      int n = reader.next(skip);
+      if (n < 0)
+        break;
+      bytesRead += n;
+
+      if (!skip) {
+        int lo = Math.max(0, firstFrame - blockStart);
+        int hi = Math.min(reader.getBlockFrames(), endFrame - blockStart);
+        reader.decode(lo, hi, file.frames, blockStart + lo - firstFrame);
+        framesDecoded.addAndGet(hi - lo);
+      }
+      reportProgress();
+    }
+  }
+
+  /** Fills the remaining bytes of dst from the channel's current position. */
+  static void readFully(ReadableByteChannel channel, ByteBuffer dst) throws IOException {
+    while (dst.hasRemaining()) {
+      if (channel.read(dst) < 0)
+        throw new EOFException("unexpected end of stream");
+    }
+  }
+
+  /** Reads and discards the next n bytes of the channel. */
+  static void skipFully(ReadableByteChannel channel, long n) throws IOException {
+    ByteBuffer scratch = ByteBuffer.allocate((int) Math.min(n, READ_CHUNK));
+    while (n > 0) {
+      scratch.clear();
+      scratch.limit((int) Math.min(n, scratch.capacity()));
+      readFully(channel, scratch);
+      n -= scratch.limit();
+    }
+  }
+
+  /** Fills the remaining bytes of dst from the channel, starting at the given file position. */
+  static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = channel.read(dst, position);
+      if (n < 0)
+        throw new EOFException("unexpected end of file at byte " + position);
+      position += n;
+    }
   }
 
   private boolean parseHeader() {
@@ -164,6 +729,10 @@ public class C3DReader {
     file.numParamBlocks = buf.getUByte(); // byte 3
     buf.getUByte(); // byte 4 (processor type; already used in parseHeader)
 
+    // parameters only record where their data is; it is decoded from this buffer on first access
+    section = new Buffer(buf.array());
+    section.setOrder(file.byteOrder);
+
     // parse all parameters / groups
     groupMap = new HashMap<Integer, ParameterGroup>();
     parameters = new ArrayList<Parameter>();
@@ -178,6 +747,27 @@ public class C3DReader {
       parameter.group = group;
     }
 
+    String[] pAnalogFormat = file.charParamData("ANALOG", "FORMAT", null);
+    if (file.dataFormat == DataFormat.INTEGER && pAnalogFormat != null
+        && pAnalogFormat[0].equals("UNSIGNED")) {
+      file.analogFormat = AnalogFormat.UNSIGNED;
+    } else {
+      file.analogFormat = AnalogFormat.SIGNED;
+    }
+
+    // the header stores frame numbers in 16-bit words; longer trials store the actual range in
+    // TRIAL:ACTUAL_START_FIELD and ACTUAL_END_FIELD as two words each (low word first)
+    short[] actualStart = file.intParamData("TRIAL", "ACTUAL_START_FIELD", null);
+    short[] actualEnd = file.intParamData("TRIAL", "ACTUAL_END_FIELD", null);
+    if (actualStart != null && actualEnd != null && actualStart.length >= 2 && actualEnd.length >= 2) {
+      int start = (actualStart[0] & 0xffff) + (actualStart[1] & 0xffff) * 65536;
+      int end = (actualEnd[0] & 0xffff) + (actualEnd[1] & 0xffff) * 65536;
+      if (end > 0xffff && end >= start) {
+        file.first3DFrame = start;
+        file.last3DFrame = end;
+      }
+    }
+
     return true;
   }
 
@@ -217,27 +807,30 @@ public class C3DReader {
         }
       }
 
-      Buffer dataBuf = null;
-      if (T > 0) {
-        dataBuf = new Buffer(buf.getSBytes(size * T));
-        dataBuf.setOrder(file.byteOrder);
-      }
+      Buffer encoded = (T > 0) ? section : null;
+      int dataOffset = buf.getPosition();
+      int dataLength = size * T;
+      buf.setPosition(dataOffset + dataLength);
       int numCharsInDescription = buf.getUByte();
       String description = buf.getString(numCharsInDescription);
 
       Parameter param = null;
       switch (dataType) {
       case -1:
-        param = new CharParameter(name, groupID, dimensions, dataBuf, description, locked);
+        param = new CharParameter(name, groupID, dimensions, encoded, dataOffset, dataLength,
+            description, locked);
         break;
       case 1:
-        param = new ByteParameter(name, groupID, dimensions, dataBuf, description, locked);
+        param = new ByteParameter(name, groupID, dimensions, encoded, dataOffset, dataLength,
+            description, locked);
         break;
       case 2:
-        param = new IntParameter(name, groupID, dimensions, dataBuf, description, locked);
+        param = new IntParameter(name, groupID, dimensions, encoded, dataOffset, dataLength,
+            description, locked);
         break;
       case 4:
-        param = new FloatParameter(name, groupID, dimensions, dataBuf, description, locked);
+        param = new FloatParameter(name, groupID, dimensions, encoded, dataOffset, dataLength,
+            description, locked);
         break;
       default:
         return false;
@@ -255,119 +848,206 @@ public class C3DReader {
     return true;
   }
 
-  private boolean parseData() {
-    buf.setPositionToC3DBlock(file.dataStartBlock);
+  /**
+   * Creates the decoder for the file's frame records. If points or analog channels are selected,
+   * the decoder only converts those, and the header and parameters are reduced to describe them.
+   */
+  private FrameDecoder newDecoder() {
+    int[] points = null;
+    int[] channels = null;
 
-    file.frames = new Frame[file.last3DFrame - file.first3DFrame + 1];
+    if (pointSelection != null) {
+      points = resolveLabels("POINT", pointSelection, file.num3DPoints);
+      if (points == null)
+        return null;
+    }
+    if (analogSelection != null) {
+      channels = resolveLabels("ANALOG", analogSelection, file.numAnalogChannels());
+      if (channels == null)
+        return null;
+    }
 
-    if (file.dataFormat == DataFormat.INTEGER) {
-      pointParser = new PointReaderSI();
+    // the decoder captures the record layout of the file before its header is reduced
+    FrameDecoder decoder = new FrameDecoder(file, points, channels);
 
-      String[] pAnalogFormat = file.charParamData("ANALOG", "FORMAT", null);
-      if (pAnalogFormat != null && pAnalogFormat[0].equals("UNSIGNED")) {
-        analogParser = new ChannelReaderUI();
-        file.analogFormat = AnalogFormat.UNSIGNED;
-      } else {
-        analogParser = new ChannelReaderSI();
-        file.analogFormat = AnalogFormat.SIGNED;
+    if (points != null) {
+      selectEntries("POINT", points, "LABELS", "DESCRIPTIONS");
+      setUsed("POINT", points.length);
+      file.num3DPoints = points.length;
+    }
+    if (channels != null) {
+      selectEntries("ANALOG", channels, "LABELS", "DESCRIPTIONS", "SCALE", "OFFSET", "UNITS");
+      setUsed("ANALOG", channels.length);
+      file.numAnalogChannelsPerVideoFrame = channels.length * file.numAnalogSamplesPerFrame;
+    }
+
+    return decoder;
+  }
+
+  /** @return Indices of the labels in the group's LABELS parameter, or null if one is missing. */
+  private int[] resolveLabels(String groupName, String[] labels, int count) {
+    String[] fileLabels = file.charParamData(groupName, "LABELS", new String[0]);
+    int[] indices = new int[labels.length];
+    for (int i = 0; i < labels.length; i++) {
+      indices[i] = -1;
+      for (int j = 0; j < Math.min(fileLabels.length, count); j++) {
+        if (fileLabels[j].trim().equals(labels[i].trim())) {
+          indices[i] = j;
+          break;
+        }
+      }
+      if (indices[i] < 0) {
+        System.err.println("(C3DReader.resolveLabels): no " + groupName + " label " + labels[i]);
+        return null;
       }
-    } else {
-      pointParser = new PointReaderFP();
-      analogParser = new ChannelReaderFP();
     }
+    return indices;
+  }
 
-    analogOffset = file.intParamData("ANALOG", "OFFSET", null);
-    analogScale = file.floatParamData("ANALOG", "SCALE", null);
-    analogGenScale = file.floatParamData("ANALOG", "GEN_SCALE", null);
+  /** Keeps only the selected entries of per-point or per-channel parameters. */
+  private void selectEntries(String groupName, int[] indices, String... paramNames) {
+    for (String paramName : paramNames) {
+      Parameter param = file.getParameter(groupName, paramName);
+      if (param != null)
+        param.selectEntries(indices);
+    }
+  }
 
-    for (int frameIndex = 0; frameIndex < file.frames.length; frameIndex++) {
-      int numPoints = file.num3DPoints;
-      int numSamples = file.numAnalogSamplesPerFrame;
-      int numChannelsPerSample = numSamples == 0 ? 0 : file.numAnalogChannelsPerVideoFrame
-          / numSamples;
-      Frame frame = new Frame(numPoints, numSamples, numChannelsPerSample);
-      file.frames[frameIndex] = frame;
+  /**
+   * Stores the loaded frame range in the frame count parameters and keeps only the events within
+   * it, in the header and in every per-event EVENT parameter. Event times are seconds since frame 1,
+   * so the events that are kept keep their times.
+   *
+   * @return False if the frame range could not be stored in the parameters.
+   */
+  private boolean selectFrameRange() {
+    if (!file.storeFrameRange(false))
+      return false;
 
-      for (int point = 0; point < file.num3DPoints; point++)
-        pointParser.parsePoint(frame, point);
+    // an event belongs to the frame nearest to its time
+    float start = (file.first3DFrame - 1.5f) / file.framesPerSecond;
+    float end = (file.last3DFrame - 0.5f) / file.framesPerSecond;
 
-      for (int sample = 0; sample < numSamples; sample++) {
-        for (int channel = 0; channel < numChannelsPerSample; channel++) {
-          analogParser.parseAnalog(frame, sample, channel);
-        }
+    if (file.numDefinedTimeEvents > 0) {
+      int n = 0;
+      for (int i = 0; i < file.numDefinedTimeEvents; i++) {
+        if (file.eventTimes[i] < start || file.eventTimes[i] >= end)
+          continue;
+        file.eventTimes[n] = file.eventTimes[i];
+        file.eventFlags[n] = file.eventFlags[i];
+        file.eventLabels[n] = file.eventLabels[i];
+        n++;
+      }
+      file.numDefinedTimeEvents = n;
+      file.eventTimes = Arrays.copyOf(file.eventTimes, n);
+      file.eventFlags = Arrays.copyOf(file.eventFlags, n);
+      file.eventLabels = Arrays.copyOf(file.eventLabels, n);
+    }
+
+    // EVENT:TIMES holds a (minutes, seconds) pair for each event
+    float[] times = file.floatParamData("EVENT", "TIMES", null);
+    short[] used = file.intParamData("EVENT", "USED", null);
+    if (times == null || used == null || used.length == 0)
+      return true;
+    int numEvents = Math.min(used[0], times.length / 2);
+
+    // every EVENT parameter other than USED has an entry per event, and may have unused entries
+    // after the first numEvents; if one has fewer entries, the events are left as they are rather
+    // than letting the parameters disagree about which event is which
+    List<Parameter> perEvent = new ArrayList<Parameter>();
+    for (Parameter param : file.getGroup("EVENT").getParameters()) {
+      if (param.name.equals("USED") || param.dimensions == null || param.dimensions.length == 0
+          || (param instanceof CharParameter && param.dimensions.length < 2))
+        continue;
+      if (param.dimensions[param.dimensions.length - 1] < numEvents) {
+        System.err.println("(C3DReader.load): EVENT:" + param.name + " has fewer entries than "
+            + "EVENT:USED; the events of the whole trial are kept.");
+        return true;
       }
+      perEvent.add(param);
     }
 
+    int[] kept = new int[numEvents];
+    int n = 0;
+    for (int i = 0; i < numEvents; i++) {
+      float time = times[2 * i] * 60 + times[2 * i + 1];
+      if (time >= start && time < end)
+        kept[n++] = i;
+    }
+    for (Parameter param : perEvent) {
+      int entries = param.dimensions[param.dimensions.length - 1];
+      int[] selected = new int[n + entries - numEvents];
+      System.arraycopy(kept, 0, selected, 0, n);
+      for (int i = n; i < selected.length; i++)
+        selected[i] = numEvents + i - n;
+      param.selectEntries(selected);
+    }
+    setUsed("EVENT", n);
     return true;
   }
 
-  /** Reads the next 3D point */
-  interface PointReader {
-    void parsePoint(Frame frame, int point);
+  private void setUsed(String groupName, int used) {
+    short[] pUsed = file.intParamData(groupName, "USED", null);
+    if (pUsed != null && pUsed.length > 0)
+      pUsed[0] = (short) used;
   }
 
-  /** Signed integer point parser */
-  class PointReaderSI implements PointReader {
-    public void parsePoint(Frame frame, int point) {
-      frame.x[point] = buf.getSShort() * file.scale3DFactor;
-      frame.y[point] = buf.getSShort() * file.scale3DFactor;
-      frame.z[point] = buf.getSShort() * file.scale3DFactor;
-      short word4 = buf.getSShort();
-      frame.camMask[point] = (byte) ((word4 >> 8) & 0xff);
-      frame.residual[point] = (word4 == -1) ? -1 : (word4 & 0xff) * file.scale3DFactor;
+  /** Decodes frames [from, to) from buf, which starts with the record of frame from. */
+  private void decodeWindow(FrameDecoder decoder, int from, int to) {
+    if (parallel && to - from > PARALLEL_GRAIN) {
+      ForkJoinPool.commonPool().invoke(new DecodeTask(decoder, from, from, to));
+    } else {
+      for (int i = from; i < to; i += PARALLEL_GRAIN)
+        decodeFrames(buf, decoder, from, i, Math.min(to, i + PARALLEL_GRAIN));
     }
   }
 
-  /** Floating-point point parser */
-  class PointReaderFP implements PointReader {
-    public void parsePoint(Frame frame, int point) {
-      frame.x[point] = buf.getFloat();
-      frame.y[point] = buf.getFloat();
-      frame.z[point] = buf.getFloat();
-      short word4 = (short) (buf.getFloat());
-      frame.camMask[point] = (byte) ((word4 >> 8) & 0xff);
-      frame.residual[point] = (word4 == -1) ? -1 : (word4 & 0xff) * -file.scale3DFactor;
-    }
+  private void reportProgress() {
+    if (progressListener != null)
+      progressListener.progress(bytesRead, totalBytes, framesDecoded.get(), totalFrames);
   }
 
-  /** Reads the next analog channel */
-  interface ChannelReader {
-    void parseAnalog(Frame frame, int sample, int channel);
-  }
+  /**
+   * Decodes frames [from, to) into the frame store; buf starts with the record of frame first, and
+   * each frame is read at its offset from there.
+   */
+  private void decodeFrames(Buffer buf, FrameDecoder decoder, int first, int from, int to) {
+    if (cancelled)
+      return;
 
-  /** Signed integer channel parser */
-  class ChannelReaderSI implements ChannelReader {
-    public void parseAnalog(Frame frame, int sample, int channel) {
-      short value = buf.getSShort();
-      if (analogOffset != null && analogScale != null && analogGenScale != null) {
-        frame.analogValues[sample][channel] = (value - analogOffset[channel]) * analogScale[channel] * analogGenScale[0];
-      } else {
-        frame.analogValues[sample][channel] = value;
-      }
-    }
+    decoder.decode(buf, (from - first) * decoder.frameSize, file.frames, from, to - from);
+
+    framesDecoded.addAndGet(to - from);
+    reportProgress();
   }
 
-  /** Unsigned integer channel parser */
-  class ChannelReaderUI implements ChannelReader {
-    public void parseAnalog(Frame frame, int sample, int channel) {
-      int value = buf.getUShort();
-      if (analogOffset != null && analogScale != null && analogGenScale != null) {
-        frame.analogValues[sample][channel] = (value - analogOffset[channel]) * analogScale[channel] * analogGenScale[0];
-      } else {
-        frame.analogValues[sample][channel] = value;
-      }
+  /**
+   * Splits a range of frames until it is small enough to decode on one thread. Every leaf uses its
+   * own decoder and buffer view, so no decoding state is shared between threads.
+   */
+  private class DecodeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final FrameDecoder decoder;
+    final int          first;
+    final int          from;
+    final int          to;
+
+    DecodeTask(FrameDecoder decoder, int first, int from, int to) {
+      this.decoder = decoder;
+      this.first = first;
+      this.from = from;
+      this.to = to;
     }
-  }
 
-  /** Floating-point channel parser */
-  class ChannelReaderFP implements ChannelReader {
-    public void parseAnalog(Frame frame, int sample, int channel) {
-      float value = buf.getFloat();
-      if (analogOffset != null && analogScale != null && analogGenScale != null) {
-        frame.analogValues[sample][channel] = (value - analogOffset[channel]) * analogScale[channel] * analogGenScale[0];
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_GRAIN) {
+        decodeFrames(buf.duplicate(), new FrameDecoder(decoder), first, from, to);
       } else {
-        frame.analogValues[sample][channel] = value;
+        int mid = (from + to) >>> 1;
+        invokeAll(new DecodeTask(decoder, first, from, mid), new DecodeTask(decoder, first, mid, to));
       }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+package c3dv.model;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exports the frames of a C3D file as delimited text (CSV or TSV) for tools that cannot read C3D.
+ * The point table has a row for each 3D frame with the X, Y and Z coordinates of every point, and
+ * the analog table has a row for each analog sample with the value of every channel; the columns
+ * are named after POINT:LABELS and ANALOG:LABELS. Coordinates of invalid points are left empty.
+ * <p>
+ * Rows are formatted directly into a fixed-size byte buffer that is written to the file whenever it
+ * fills, and numbers are formatted with a fixed number of decimals without creating strings, so
+ * the memory used does not depend on the length of the trial.
+ *
+ * @author Justin Stoecker
+ */
+public class C3DTextWriter {
+
+  /** Number of bytes of text buffered before they are written to the file. */
+  static final int             WRITE_SIZE     = 256 * 1024;
+
+  /** Room left in the buffer for one number or delimiter before it must be flushed. */
+  private static final int     FIELD_SIZE     = 64;
+
+  /** Magnitude above which numbers are formatted by Float.toString instead of as fixed point. */
+  private static final double  FIXED_LIMIT    = 1e9;
+
+  private static final int[]   POW10          = { 1, 10, 100, 1000, 10000, 100000, 1000000,
+      10000000, 100000000, 1000000000        };
+
+  /** The digits of 00 to 99, so that digits are formatted two at a time. */
+  private static final byte[]  DIGIT_PAIRS    = new byte[200];
+  static {
+    for (int i = 0; i < 100; i++) {
+      DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+      DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+    }
+  }
+
+  private final byte[]         text           = new byte[WRITE_SIZE];
+  private final ByteBuffer     textBuffer     = ByteBuffer.wrap(text);
+  private FileChannel          channel;
+  private int                  length;
+  private byte                 delimiter      = ',';
+  private int                  pointDecimals  = 3;
+  private int                  analogDecimals = 6;
+
+  /** Sets the character that separates columns (',' for CSV, which is the default, or '\t' for TSV). */
+  public void setDelimiter(char delimiter) {
+    this.delimiter = (byte) delimiter;
+  }
+
+  /** Sets the number of decimals of point coordinates (default 3) and analog values (default 6). */
+  public void setDecimals(int pointDecimals, int analogDecimals) {
+    this.pointDecimals = Math.max(0, Math.min(POW10.length - 1, pointDecimals));
+    this.analogDecimals = Math.max(0, Math.min(POW10.length - 1, analogDecimals));
+  }
+
+  /**
+   * Writes the point table: Frame, Time, and the X, Y and Z columns of each point.
+   *
+   * @return False if the file could not be written.
+   */
+  public boolean writePoints(C3DFile file, String fileName) {
+    if (!open(fileName, "writePoints"))
+      return false;
+
+    try {
+      String[] labels = file.charParamData("POINT", "LABELS", new String[0]);
+      putText("Frame");
+      putDelimiter();
+      putText("Time");
+      for (int point = 0; point < file.num3DPoints; point++) {
+        String label = label(labels, point, "Point");
+        for (String axis : new String[] { "_X", "_Y", "_Z" }) {
+          putDelimiter();
+          putText(label + axis);
+        }
+      }
+      putNewline();
+
+      int numFrames = file.getNumFrames();
+      for (int frameIndex = 0; frameIndex < numFrames; frameIndex++) {
+        Frame frame = file.getFrame(frameIndex);
+        flushIfFull();
+        putInt(file.first3DFrame + frameIndex);
+        putDelimiter();
+        putFloat(frameIndex / (double) file.framesPerSecond, 6);
+        for (int point = 0; point < file.num3DPoints; point++) {
+          if (length > WRITE_SIZE - 3 * FIELD_SIZE)
+            flush();
+          putDelimiter();
+          boolean valid = frame.isValid(point);
+          if (valid)
+            putFloat(frame.getX(point), pointDecimals);
+          putDelimiter();
+          if (valid)
+            putFloat(frame.getY(point), pointDecimals);
+          putDelimiter();
+          if (valid)
+            putFloat(frame.getZ(point), pointDecimals);
+        }
+        putNewline();
+      }
+      return close("writePoints");
+    } catch (IOException e) {
+      System.err.println("(C3DTextWriter.writePoints): " + e.getMessage());
+      e.printStackTrace();
+      abort();
+      return false;
+    }
+  }
+
+  /**
+   * Writes the analog table: Frame, Sample, Time, and a column for each channel.
+   *
+   * @return False if the file could not be written.
+   */
+  public boolean writeAnalog(C3DFile file, String fileName) {
+    if (!open(fileName, "writeAnalog"))
+      return false;
+
+    try {
+      int numChannels = file.numAnalogChannels();
+      int numSamples = file.numAnalogSamplesPerFrame;
+      double analogRate = (double) file.framesPerSecond * numSamples;
+
+      String[] labels = file.charParamData("ANALOG", "LABELS", new String[0]);
+      putText("Frame");
+      putDelimiter();
+      putText("Sample");
+      putDelimiter();
+      putText("Time");
+      for (int channel = 0; channel < numChannels; channel++) {
+        putDelimiter();
+        putText(label(labels, channel, "Channel"));
+      }
+      putNewline();
+
+      int numFrames = (numChannels == 0) ? 0 : file.getNumFrames();
+      for (int frameIndex = 0; frameIndex < numFrames; frameIndex++) {
+        Frame frame = file.getFrame(frameIndex);
+        for (int sample = 0; sample < numSamples; sample++) {
+          flushIfFull();
+          putInt(file.first3DFrame + frameIndex);
+          putDelimiter();
+          putInt(sample);
+          putDelimiter();
+          putFloat(((long) frameIndex * numSamples + sample) / analogRate, 6);
+          for (int channel = 0; channel < numChannels; channel++) {
+            flushIfFull();
+            putDelimiter();
+            putFloat(frame.getAnalog(sample, channel), analogDecimals);
+          }
+          putNewline();
+        }
+      }
+      return close("writeAnalog");
+    } catch (IOException e) {
+      System.err.println("(C3DTextWriter.writeAnalog): " + e.getMessage());
+      e.printStackTrace();
+      abort();
+      return false;
+    }
+  }
+
+  /** @return The trimmed label at index, or prefix + (index + 1) if there is none. */
+  private static String label(String[] labels, int index, String prefix) {
+    String label = (index < labels.length) ? labels[index].trim() : "";
+    return label.isEmpty() ? prefix + (index + 1) : label;
+  }
+
+  private boolean open(String fileName, String method) {
+    try {
+      channel = new FileOutputStream(fileName).getChannel();
+      length = 0;
+      return true;
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DTextWriter." + method + "): could not create file: " + e.getMessage());
+      return false;
+    }
+  }
+
+  private boolean close(String method) {
+    try {
+      flush();
+      channel.close();
+      return true;
+    } catch (IOException e) {
+      System.err.println("(C3DTextWriter." + method + "): " + e.getMessage());
+      e.printStackTrace();
+      abort();
+      return false;
+    } finally {
+      channel = null;
+    }
+  }
+
+  private void abort() {
+    try {
+      if (channel != null)
+        channel.close();
+    } catch (IOException e) {
+    }
+    channel = null;
+  }
+
+  private void flushIfFull() throws IOException {
+    if (length > WRITE_SIZE - FIELD_SIZE)
+      flush();
+  }
+
+  private void flush() throws IOException {
+    textBuffer.clear();
+    textBuffer.limit(length);
+    while (textBuffer.hasRemaining())
+      channel.write(textBuffer);
+    length = 0;
+  }
+
+  private void putDelimiter() {
+    text[length++] = delimiter;
+  }
+
+  private void putNewline() {
+    text[length++] = '\n';
+  }
+
+  /** Appends a header field, quoted if it contains the delimiter or a quote. */
+  private void putText(String s) throws IOException {
+    if (s.indexOf(delimiter) >= 0 || s.indexOf('"') >= 0 || s.indexOf('\n') >= 0)
+      s = '"' + s.replace("\"", "\"\"") + '"';
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i < bytes.length; i++) {
+      flushIfFull();
+      text[length++] = bytes[i];
+    }
+  }
+
+  /** Appends the decimal digits of value. */
+  private void putInt(int value) {
+    if (value < 0) {
+      text[length++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    while (digits < POW10.length && value >= POW10[digits])
+      digits++;
+    length += digits;
+    putDigits(value, length, digits);
+  }
+
+  /**
+   * Appends value rounded to the given number of decimals. Values that are too large for fixed
+   * point, and NaN or infinite values, are written as by Float.toString.
+   */
+  private void putFloat(double value, int decimals) {
+    if (!(Math.abs(value) < FIXED_LIMIT)) {
+      byte[] bytes = Float.toString((float) value).getBytes(StandardCharsets.US_ASCII);
+      System.arraycopy(bytes, 0, text, length, bytes.length);
+      length += bytes.length;
+      return;
+    }
+
+    // halves are rounded away from zero; as with String.format, negative values keep their sign
+    // even if they round to zero (e.g. -0.000000)
+    long pow = POW10[decimals];
+    long scaled = (long) (Math.abs(value) * pow + 0.5);
+    if (Double.doubleToRawLongBits(value) < 0)
+      text[length++] = '-';
+    putInt((int) (scaled / pow));
+    if (decimals == 0)
+      return;
+
+    text[length++] = '.';
+    length += decimals;
+    putDigits((int) (scaled % pow), length, decimals);
+  }
+
+  /** Writes the last count digits of value (zero-padded) to the count bytes before end. */
+  private void putDigits(int value, int end, int count) {
+    int i = end;
+    for (; count >= 2; count -= 2) {
+      int pair = (value % 100) * 2;
+      value /= 100;
+      text[--i] = DIGIT_PAIRS[pair + 1];
+      text[--i] = DIGIT_PAIRS[pair];
+    }
+    if (count == 1)
+      text[--i] = (byte) ('0' + value % 10);
+  }
+}
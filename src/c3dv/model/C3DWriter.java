@@ -1,14 +1,19 @@
 package c3dv.model;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import c3dv.model.C3DFile.DataFormat;
 
@@ -23,19 +28,183 @@ public class C3DWriter {
   private float[] analogGenScale;
   private float[] analogScale;
 
+  private boolean parallel;
+  private int     frameSize;
+
+  /** Byte offset in the file of each parameter's data, as written by writeMetadata. */
+  final Map<Parameter, Integer> dataOffsets = new IdentityHashMap<Parameter, Integer>();
+
+  /** Number of bytes of frame records encoded before they are written to the file. */
+  static final int WRITE_SIZE          = 64 * 1024;
+
+  /** Number of bytes of frame records encoded at once when encoding in parallel. */
+  static final int PARALLEL_WRITE_SIZE = 16 << 20;
+
+  /** Number of frames encoded by a single task. */
+  static final int PARALLEL_GRAIN      = 256;
+
+  /**
+   * Encodes frame records on all cores, each task filling the records of a range of frames. The
+   * output is identical to sequential encoding.
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Writes the file. If the frames are still those read from a source file and have not been
+   * modified (e.g. only parameters or events were edited), the source's data section is copied
+   * byte for byte instead of encoding the frames again.
+   */
   public boolean write(C3DFile file, String fileName) {
+    C3DFile.DataSection source = (file.source != null && file.source.matches(file)) ? file.source
+        : null;
+
+    // the header and parameters are written to memory; the frames are encoded a chunk at a time
+    // straight to the file, so memory use does not depend on the length of the trial
+    if (!writeMetadata(file))
+      return false;
+
+    // a file that the frames are read from must stay intact until they have all been written
+    File target = new File(fileName);
+    File outFile = readsFrom(file, target) ? new File(fileName + ".tmp") : target;
+
+    try {
+      FileOutputStream out = new FileOutputStream(outFile);
+      try {
+        FileChannel channel = out.getChannel();
+        writeFully(channel, buf);
+        if (source != null)
+          copyData(channel, source);
+        else
+          writeData(channel);
+      } finally {
+        out.close();
+      }
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DWriter.write): could not find file: " + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DWriter.write): " + e.getMessage());
+      e.printStackTrace();
+      if (outFile != target)
+        outFile.delete();
+      return false;
+    }
+
+    if (!replace(outFile, target, "write"))
+      return false;
+
+    // the written file now holds the unchanged data section, so a later save can copy it again
+    if (source != null)
+      file.source = new C3DFile.DataSection(target, file, file.calcSizeOfFrame());
+    else if (outFile != target)
+      file.source = null;
+    return true;
+  }
+
+  /**
+   * Writes the file with its point data compressed (see {@link TrajectoryCodec}), which typically
+   * takes several times less space. The header and parameter sections are written as usual, so
+   * {@link C3DReader} reads the file like any other, but other C3D software cannot read its data
+   * section. INTEGER point data is kept exactly; REAL point data is rounded to multiples of the 3D
+   * scale factor. Analog samples are stored as in {@link #write(C3DFile, String)}.
+   */
+  public boolean writeCompressed(C3DFile file, String fileName) {
+    // the header and parameters are written to memory, the data section directly to the file
+    if (!writeMetadata(file))
+      return false;
+
+    File target = new File(fileName);
+    File outFile = readsFrom(file, target) ? new File(fileName + ".tmp") : target;
+
+    try {
+      FileOutputStream out = new FileOutputStream(outFile);
+      try {
+        FileChannel channel = out.getChannel();
+        writeFully(channel, buf);
+        writeCompressedData(channel);
+      } finally {
+        out.close();
+      }
+    } catch (FileNotFoundException e) {
+      System.err.println("(C3DWriter.writeCompressed): could not find file: " + e.getMessage());
+      return false;
+    } catch (IOException e) {
+      System.err.println("(C3DWriter.writeCompressed): " + e.getMessage());
+      e.printStackTrace();
+      if (outFile != target)
+        outFile.delete();
+      return false;
+    }
+
+    if (!replace(outFile, target, "writeCompressed"))
+      return false;
+
+    // the data section of the written file is compressed, so it cannot be copied by a later save
+    if (outFile != target)
+      file.source = null;
+    return true;
+  }
+
+  /**
+   * @return True if the frames of file are read from target, either copied from its data section or
+   *         decoded from a mapping of it, so target must not be truncated before they are written.
+   */
+  private static boolean readsFrom(C3DFile file, File target) {
+    if (file.source != null && isSameFile(file.source.file, target))
+      return true;
+    return file.frameSource instanceof MappedFrameSource
+        && isSameFile(((MappedFrameSource) file.frameSource).file, target);
+  }
+
+  /** Moves a file written next to target into its place; does nothing if outFile is target. */
+  private static boolean replace(File outFile, File target, String method) {
+    if (outFile == target)
+      return true;
+    target.delete();
+    if (!outFile.renameTo(target)) {
+      System.err.println("(C3DWriter." + method + "): could not replace " + target + "; the file "
+          + "was written to " + outFile);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Encodes the header and parameter blocks of file into buf, which is left ready to be written at
+   * the start of the file. The offset of each parameter's data is recorded in dataOffsets. The frame
+   * range is stored in the parameters first (see {@link C3DFile#storeFrameRange(boolean)}), since
+   * the header cannot hold frame numbers above 65535.
+   *
+   * @return False if the frame range could not be stored.
+   */
+  boolean writeMetadata(C3DFile file) {
     this.file = file;
+    if (!file.storeFrameRange(false))
+      return false;
+
+    // parameters may have been added, so the parameter section may need to grow
+    int paramBlocks = (file.calcSizeOfParameterSection() + 511) / 512;
+    file.numParamBlocks = Math.max(file.numParamBlocks, paramBlocks);
 
     // a source file may be ordered differently, but I force that the parameter section comes
     // immediately after the header, and the data comes immediately after the parameters
     file.paramStartBlock = 2;
     file.dataStartBlock = file.paramStartBlock + file.numParamBlocks;
 
-    // allocate memory to store the file
-    int numBlocks = 1 + file.numParamBlocks + (int) Math.ceil(file.calcSizeOfDataSection() / 512.0);
-    buf = ByteBuffer.allocate(numBlocks * 512);
+    buf = ByteBuffer.allocate((file.dataStartBlock - 1) * 512);
     buf.order(ByteOrder.LITTLE_ENDIAN);
+    dataOffsets.clear();
+
+    selectWriters();
+    writeHeader();
+    writeParameters();
+    buf.clear();
+    return true;
+  }
 
+  private void selectWriters() {
     // select writers based on data type
     if (file.dataFormat == DataFormat.INTEGER) {
       pointWriter = new PointWriterSI();
@@ -45,30 +214,9 @@ public class C3DWriter {
       channelWriter = new ChannelWriterFP();
     }
 
-    // write to memory
-    writeHeader();
-    writeParameters();
-    writeData();
-
-    // write to disk
-    try {
-      File outFile = new File(fileName);
-      FileOutputStream fos = new FileOutputStream(outFile);
-      BufferedOutputStream bos = new BufferedOutputStream(fos);
-      DataOutputStream out = new DataOutputStream(bos);
-
-      out.write(buf.array());
-
-      out.close();
-      return true;
-    } catch (FileNotFoundException e) {
-      System.err.println("(C3DWriter.write): could not find file: " + e.getMessage());
-      return false;
-    } catch (IOException e) {
-      System.err.println("(C3DWriter.write): " + e.getMessage());
-      e.printStackTrace();
-      return false;
-    }
+    analogOffset = file.intParamData("ANALOG", "OFFSET", null);
+    analogScale = file.floatParamData("ANALOG", "SCALE", null);
+    analogGenScale = file.floatParamData("ANALOG", "GEN_SCALE", null);
   }
 
   private void writeHeader() {
@@ -76,8 +224,8 @@ public class C3DWriter {
     buf.put((byte) 0x50); // word 1, byte 2
     buf.putShort((short) file.num3DPoints); // word 2
     buf.putShort((short) file.numAnalogChannelsPerVideoFrame); // word 3
-    buf.putShort((short) file.first3DFrame); // word 4
-    buf.putShort((short) file.last3DFrame); // word 5
+    buf.putShort((short) Math.min(file.first3DFrame, 0xffff)); // word 4 (see TRIAL for longer trials)
+    buf.putShort((short) Math.min(file.last3DFrame, 0xffff)); // word 5
     buf.putShort((short) file.maxInterpolationGap); // word 6
     buf.putFloat(file.scale3DFactor); // words 7-8
     buf.putShort((short) file.dataStartBlock); // word 9
@@ -150,6 +298,7 @@ public class C3DWriter {
     buf.put((byte) D);
     for (int i = 0; i < D; i++)
       buf.put((byte) param.dimensions[i]);
+    dataOffsets.put(param, buf.position());
     if (data != null)
       buf.put(data);
     buf.put((byte) M);
@@ -167,28 +316,137 @@ public class C3DWriter {
     return 4;
   }
 
-  private void writeData() {
-    buf.position((file.dataStartBlock - 1) * 512);
+  /**
+   * Encodes the frame records into a reusable direct buffer of whole frames (about WRITE_SIZE bytes,
+   * or PARALLEL_WRITE_SIZE bytes when encoding in parallel), which is written to the channel each
+   * time it is full. The last block is padded with zeros.
+   */
+  private void writeData(FileChannel channel) throws IOException {
+    frameSize = recordSize();
+    int chunkSize = parallel ? PARALLEL_WRITE_SIZE : WRITE_SIZE;
+    int chunkFrames = Math.max(1, chunkSize / Math.max(1, frameSize));
+    ByteBuffer chunk = ByteBuffer.allocateDirect(chunkFrames * frameSize);
+    chunk.order(ByteOrder.LITTLE_ENDIAN);
+
+    long written = 0;
+    int numFrames = file.getNumFrames();
+    for (int from = 0; from < numFrames; from += chunkFrames) {
+      int to = Math.min(numFrames, from + chunkFrames);
+      chunk.clear();
+      if (parallel && to - from > PARALLEL_GRAIN) {
+        ForkJoinPool.commonPool().invoke(new EncodeTask(chunk, from, from, to));
+        chunk.position((to - from) * frameSize);
+      } else {
+        encodeFrames(chunk, from, to);
+      }
+      written += flush(channel, chunk);
+    }
+
+    // the data section ends on a block boundary
+    writeFully(channel, ByteBuffer.allocate((int) ((512 - written % 512) % 512)));
+  }
+
+  /** Encodes the records of frames [from, to) at the position of buf. */
+  private void encodeFrames(ByteBuffer buf, int from, int to) {
+    for (int frameIndex = from; frameIndex < to; frameIndex++)
+      encodeFrame(buf, file.getFrame(frameIndex));
+  }
 
-    analogOffset = file.intParamData("ANALOG", "OFFSET", null);
-    analogScale = file.floatParamData("ANALOG", "SCALE", null);
-    analogGenScale = file.floatParamData("ANALOG", "GEN_SCALE", null);
-    int numChannels = file.numAnalogSamplesPerFrame == 0 ? 0 : file.numAnalogChannelsPerVideoFrame
-        / file.numAnalogSamplesPerFrame;
-    for (int frameIndex = 0; frameIndex < file.frames.length; frameIndex++) {
-      Frame frame = file.frames[frameIndex];
-
-      // write point data for frame
-      for (int pointIndex = 0; pointIndex < file.num3DPoints; pointIndex++)
-        pointWriter.write(buf, frame, pointIndex, file.scale3DFactor);
-
-      // write analog data for frame
-      for (int sampleIndex = 0; sampleIndex < file.numAnalogSamplesPerFrame; sampleIndex++)
-        for (int channelIndex = 0; channelIndex < numChannels; channelIndex++)
-          channelWriter.write(buf, frame, sampleIndex, channelIndex);
+  /** Encodes the record of one frame at the position of buf. */
+  void encodeFrame(ByteBuffer buf, Frame frame) {
+    // write point data for frame
+    for (int pointIndex = 0; pointIndex < file.num3DPoints; pointIndex++)
+      pointWriter.write(buf, frame, pointIndex, file.scale3DFactor);
+
+    // write analog data for frame
+    int numChannels = file.numAnalogChannels();
+    for (int sampleIndex = 0; sampleIndex < file.numAnalogSamplesPerFrame; sampleIndex++)
+      for (int channelIndex = 0; channelIndex < numChannels; channelIndex++)
+        channelWriter.write(buf, frame, sampleIndex, channelIndex);
+  }
+
+  /** @return The number of bytes in the record of a frame, as encoded by encodeFrame. */
+  int recordSize() {
+    int valueSize = (file.dataFormat == DataFormat.INTEGER) ? 2 : 4;
+    return (file.num3DPoints * 4 + file.numAnalogSamplesPerFrame * file.numAnalogChannels())
+        * valueSize;
+  }
+
+  /** Copies the data section of the source file with transferTo, then pads the last block. */
+  private void copyData(FileChannel channel, C3DFile.DataSection source) throws IOException {
+    FileInputStream in = new FileInputStream(source.file);
+    try {
+      FileChannel sourceChannel = in.getChannel();
+      long position = source.start;
+      long end = source.start + source.size;
+      while (position < end) {
+        long n = sourceChannel.transferTo(position, end - position, channel);
+        if (n <= 0)
+          throw new EOFException("unexpected end of " + source.file + " at byte " + position);
+        position += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    int padding = (int) ((512 - source.size % 512) % 512);
+    writeFully(channel, ByteBuffer.allocate(padding));
+  }
+
+  /** @return True if a and b are the same file, or if that cannot be determined. */
+  static boolean isSameFile(File a, File b) {
+    try {
+      return a.getCanonicalFile().equals(b.getCanonicalFile());
+    } catch (IOException e) {
+      return true;
     }
   }
 
+  /** Writes the bytes put into chunk so far and clears it. @return The number of bytes written. */
+  private static int flush(FileChannel channel, ByteBuffer chunk) throws IOException {
+    chunk.flip();
+    int n = chunk.remaining();
+    writeFully(channel, chunk);
+    chunk.clear();
+    return n;
+  }
+
+  /** Writes the frames in blocks of compressed points followed by the blocks' analog records. */
+  private void writeCompressedData(FileChannel channel) throws IOException {
+    TrajectoryCodec codec = new TrajectoryCodec(file.num3DPoints, file.scale3DFactor);
+    int blockFrames = TrajectoryCodec.BLOCK_FRAMES;
+    int numChannels = file.numAnalogChannels();
+    int analogSize = file.numAnalogChannelsPerVideoFrame * (file.dataFormat == DataFormat.INTEGER ? 2 : 4);
+    ByteBuffer block = ByteBuffer.allocate(4 + codec.maxEncodedSize(blockFrames) + blockFrames
+        * analogSize);
+    block.order(ByteOrder.LITTLE_ENDIAN);
+    Frame[] frames = new Frame[blockFrames];
+
+    writeFully(channel, TrajectoryCodec.newSectionHeader());
+    for (int from = 0; from < file.getNumFrames(); from += blockFrames) {
+      int n = Math.min(blockFrames, file.getNumFrames() - from);
+      for (int t = 0; t < n; t++)
+        frames[t] = file.getFrame(from + t);
+
+      block.clear();
+      block.position(4);
+      codec.encode(frames, n, block);
+      for (int t = 0; t < n; t++)
+        for (int sampleIndex = 0; sampleIndex < file.numAnalogSamplesPerFrame; sampleIndex++)
+          for (int channelIndex = 0; channelIndex < numChannels; channelIndex++)
+            channelWriter.write(block, frames[t], sampleIndex, channelIndex);
+      block.putInt(0, block.position() - 4);
+
+      block.flip();
+      writeFully(channel, block);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+    while (src.hasRemaining())
+      channel.write(src);
+  }
+
   interface PointWriter {
     void write(ByteBuffer buf, Frame frame, int pointIndex, float scale);
   }
@@ -196,11 +454,11 @@ public class C3DWriter {
   class PointWriterSI implements PointWriter {
     public void write(ByteBuffer buf, Frame frame, int pointIndex, float scale) {
       if (frame.isValid(pointIndex)) {
-        buf.putShort((short) (frame.x[pointIndex] / scale));
-        buf.putShort((short) (frame.y[pointIndex] / scale));
-        buf.putShort((short) (frame.z[pointIndex] / scale));
-        int b1 = frame.camMask[pointIndex] & 0xff;
-        int b2 = (byte) (frame.residual[pointIndex] / scale);
+        buf.putShort((short) (frame.getX(pointIndex) / scale));
+        buf.putShort((short) (frame.getY(pointIndex) / scale));
+        buf.putShort((short) (frame.getZ(pointIndex) / scale));
+        int b1 = frame.getCamMask(pointIndex) & 0xff;
+        int b2 = (byte) (frame.getResidual(pointIndex) / scale);
         buf.putShort((short) (b1 << 8 | b2));
       } else {
         buf.putShort((short) 0);
@@ -214,11 +472,11 @@ public class C3DWriter {
   class PointWriterFP implements PointWriter {
     public void write(ByteBuffer buf, Frame frame, int pointIndex, float scale) {
       if (frame.isValid(pointIndex)) {
-        buf.putFloat(frame.x[pointIndex]);
-        buf.putFloat(frame.y[pointIndex]);
-        buf.putFloat(frame.z[pointIndex]);
-        int b1 = frame.camMask[pointIndex];
-        int b2 = (byte) (frame.residual[pointIndex] / -scale);
+        buf.putFloat(frame.getX(pointIndex));
+        buf.putFloat(frame.getY(pointIndex));
+        buf.putFloat(frame.getZ(pointIndex));
+        int b1 = frame.getCamMask(pointIndex);
+        int b2 = (byte) (frame.getResidual(pointIndex) / -scale);
         buf.putFloat(b1 << 8 | b2);
       } else {
         buf.putFloat(0);
@@ -235,7 +493,7 @@ public class C3DWriter {
 
   class ChannelWriterSI implements ChannelWriter {
     public void write(ByteBuffer buf, Frame frame, int sampleIndex, int channelIndex) {
-      float value = frame.analogValues[sampleIndex][channelIndex];
+      float value = frame.getAnalog(sampleIndex, channelIndex);
       if (analogOffset != null && analogScale != null && analogGenScale != null) {
         buf.putShort((short) (value / analogGenScale[0] / analogScale[channelIndex] + analogOffset[channelIndex]));
       } else {
@@ -246,7 +504,7 @@ public class C3DWriter {
 
   class ChannelWriterFP implements ChannelWriter {
     public void write(ByteBuffer buf, Frame frame, int sampleIndex, int channelIndex) {
-      float value = frame.analogValues[sampleIndex][channelIndex];
+      float value = frame.getAnalog(sampleIndex, channelIndex);
       if (analogOffset != null && analogScale != null && analogGenScale != null) {
         buf.putFloat((value / analogGenScale[0] / analogScale[channelIndex] + analogOffset[channelIndex]));
       } else {
@@ -254,4 +512,37 @@ public class C3DWriter {
       }
     }
   }
+
+  /**
+   * Splits a range of frames until it is small enough to encode on one thread. Every leaf writes
+   * through its own view of the chunk, starting at the offset of its first frame's record.
+   */
+  private class EncodeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final ByteBuffer chunk;
+    final int        first;
+    final int        from;
+    final int        to;
+
+    EncodeTask(ByteBuffer chunk, int first, int from, int to) {
+      this.chunk = chunk;
+      this.first = first;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_GRAIN) {
+        ByteBuffer view = chunk.duplicate();
+        view.order(ByteOrder.LITTLE_ENDIAN);
+        view.position((from - first) * frameSize);
+        encodeFrames(view, from, to);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new EncodeTask(chunk, first, from, mid), new EncodeTask(chunk, first, mid, to));
+      }
+    }
+  }
 }
@@ -11,18 +11,37 @@ import java.util.Arrays;
  */
 public class CharParameter extends Parameter {
 
+  /**
+   * The parameter's strings. Data read from a file is decoded on first access, so this is null until
+   * then; {@link #getData()} decodes it first.
+   */
   public String[] data;
 
   public CharParameter(String name, int groupID, int[] dimensions, Buffer dataBuf, String description,
       boolean locked) {
-    super(name, groupID, dimensions, description, locked);
+    this(name, groupID, dimensions, dataBuf, 0, (dataBuf == null) ? 0 : dataBuf.size(), description,
+        locked);
+  }
+
+  CharParameter(String name, int groupID, int[] dimensions, Buffer encoded, int offset, int length,
+      String description, boolean locked) {
+    super(name, groupID, dimensions, encoded, offset, length, description, locked);
+  }
 
-    if (dataBuf == null) {
-      data = null;
-    } else if (dimensions == null || dimensions.length == 1) {
-      data = new String[] { new String(dataBuf.array()) };
+  /** @return The parameter's strings, or null if it has none. */
+  public String[] getData() {
+    ensureDecoded();
+    return data;
+  }
+
+  @Override
+  void decode(Buffer buf, int offset, int length) {
+    if (dimensions == null || dimensions.length == 1) {
+      data = new String[] { new String(buf.getSBytes(offset, length)) };
     } else if (dimensions.length == 2) {
-      data = dataBuf.getStrings(dimensions[0], dimensions[1]);
+      data = new String[dimensions[1]];
+      for (int i = 0; i < data.length; i++)
+        data[i] = buf.getString(offset + i * dimensions[0], dimensions[0]);
     }
   }
 
@@ -33,12 +52,12 @@ public class CharParameter extends Parameter {
 
   @Override
   public String dataString() {
-    return Arrays.toString(data);
+    return Arrays.toString(getData());
   }
 
   @Override
   public byte[] getDataBytes() {
-    if (data == null)
+    if (getData() == null)
       return null;
     
     ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -49,4 +68,24 @@ public class CharParameter extends Parameter {
     }
     return stream.toByteArray();
   }
+
+  @Override
+  boolean selectData(int[] indices, int n) {
+    // a one-dimensional character parameter is a single string
+    if (getData() == null || dimensions.length < 2)
+      return false;
+    int m = data.length / n;
+    String[] selected = new String[indices.length * m];
+    for (int i = 0; i < indices.length; i++)
+      System.arraycopy(data, indices[i] * m, selected, i * m, m);
+    data = selected;
+    return true;
+  }
+
+  @Override
+  Parameter copy() {
+    CharParameter copy = new CharParameter(name, id, copyDimensions(), null, description, locked);
+    copy.data = (getData() == null) ? null : data.clone();
+    return copy;
+  }
 }
@@ -0,0 +1,184 @@
+package c3dv.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Frame store that keeps its columns in direct (off-heap) buffers, so loaded capture data does not
+ * add to the Java heap or to garbage collection work. The memory is released when the buffers are
+ * garbage collected, after the store is closed or no longer referenced.
+ * <p>
+ * {@link #close()} does not free the memory itself. {@link Frame} views of the store may still be
+ * read on other threads (e.g. by the renderer), and freeing the buffers under them would read freed
+ * memory; the JDK offers no way to free a direct buffer that is safe against that. Closing drops
+ * the store's references instead, so the memory becomes collectable at once and reads through stale
+ * views fail with a NullPointerException.
+ * <p>
+ * A direct buffer holds at most 2 GB, so each column is split into segments of SEGMENT_VALUES
+ * values; value i of a column is value (i % SEGMENT_VALUES) of segment (i / SEGMENT_VALUES).
+ *
+ * @author Justin Stoecker
+ */
+public class DirectFrameStore extends FrameStore {
+
+  /** Values in each segment of a column (1 GB of floats). */
+  static final int         SEGMENT_SHIFT  = 28;
+  static final int         SEGMENT_VALUES = 1 << SEGMENT_SHIFT;
+  private static final int SEGMENT_MASK   = SEGMENT_VALUES - 1;
+
+  /** Segments of the X, Y, Z and RESIDUAL columns. */
+  private FloatBuffer[][] points;
+  private ByteBuffer[]    camMasks;
+  private FloatBuffer[]   analog;
+
+  public DirectFrameStore(int numFrames, int numPoints, int numSamples, int numChannels) {
+    super(numFrames, numPoints, numSamples, numChannels);
+
+    long pointValues = (long) numFrames * numPoints;
+    points = new FloatBuffer[4][];
+    for (int column = X; column <= RESIDUAL; column++)
+      points[column] = allocateFloats(pointValues);
+    camMasks = new ByteBuffer[segments(pointValues)];
+    for (int s = 0; s < camMasks.length; s++)
+      camMasks[s] = ByteBuffer.allocateDirect(segmentLength(pointValues, s));
+    analog = allocateFloats((long) numFrames * numSamples * numChannels);
+  }
+
+  /**
+   * Creates a store over existing native-order buffers, e.g. regions of a memory-mapped cache file
+   * written by {@link FrameCache}: the four point columns one after another, the camera masks, and
+   * the analog samples. The buffers are not copied; a mapping is released when it is garbage
+   * collected.
+   */
+  DirectFrameStore(int numFrames, int numPoints, int numSamples, int numChannels,
+      ByteBuffer pointBytes, ByteBuffer camMaskBytes, ByteBuffer analogBytes) {
+    super(numFrames, numPoints, numSamples, numChannels);
+
+    FloatBuffer allPoints = pointBytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    int columnValues = numFrames * numPoints;
+    points = new FloatBuffer[4][];
+    for (int column = X; column <= RESIDUAL; column++)
+      points[column] = sliceFloats(allPoints, column * columnValues, columnValues);
+
+    camMasks = new ByteBuffer[segments(columnValues)];
+    for (int s = 0; s < camMasks.length; s++) {
+      ByteBuffer view = camMaskBytes.duplicate();
+      view.position(s << SEGMENT_SHIFT);
+      view.limit(view.position() + segmentLength(columnValues, s));
+      camMasks[s] = view.slice();
+    }
+
+    FloatBuffer allAnalog = analogBytes.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    analog = sliceFloats(allAnalog, 0, allAnalog.capacity());
+  }
+
+  /** @return Segments of native-order direct buffers that together hold n floats. */
+  private static FloatBuffer[] allocateFloats(long n) {
+    FloatBuffer[] segments = new FloatBuffer[segments(n)];
+    for (int s = 0; s < segments.length; s++)
+      segments[s] = ByteBuffer.allocateDirect(4 * segmentLength(n, s)).order(
+          ByteOrder.nativeOrder()).asFloatBuffer();
+    return segments;
+  }
+
+  /** @return Segments that view the n floats of all starting at index start. */
+  private static FloatBuffer[] sliceFloats(FloatBuffer all, int start, int n) {
+    FloatBuffer[] segments = new FloatBuffer[segments(n)];
+    for (int s = 0; s < segments.length; s++) {
+      FloatBuffer view = all.duplicate();
+      view.position(start + (s << SEGMENT_SHIFT));
+      view.limit(view.position() + segmentLength(n, s));
+      segments[s] = view.slice();
+    }
+    return segments;
+  }
+
+  /** @return The number of segments that hold n values (at least one, so that it is never empty). */
+  private static int segments(long n) {
+    return (int) Math.max(1, (n + SEGMENT_VALUES - 1) >>> SEGMENT_SHIFT);
+  }
+
+  /** @return The number of values in segment s of a column of n values. */
+  private static int segmentLength(long n, int s) {
+    return (int) Math.min(SEGMENT_VALUES, Math.max(0, n - ((long) s << SEGMENT_SHIFT)));
+  }
+
+  @Override
+  public float getPoint(int column, int i) {
+    return points[column][i >>> SEGMENT_SHIFT].get(i & SEGMENT_MASK);
+  }
+
+  @Override
+  public void setPoint(int column, int i, float value) {
+    points[column][i >>> SEGMENT_SHIFT].put(i & SEGMENT_MASK, value);
+  }
+
+  @Override
+  public void setPoints(int column, int i, float[] src, int from, int n) {
+    FloatBuffer[] segments = points[column];
+    for (int k = 0; k < n; k++)
+      segments[(i + k) >>> SEGMENT_SHIFT].put((i + k) & SEGMENT_MASK, src[from + k]);
+  }
+
+  @Override
+  public void setCamMasks(int i, byte[] src, int from, int n) {
+    for (int k = 0; k < n; k++)
+      camMasks[(i + k) >>> SEGMENT_SHIFT].put((i + k) & SEGMENT_MASK, src[from + k]);
+  }
+
+  @Override
+  public byte getCamMask(int i) {
+    return camMasks[i >>> SEGMENT_SHIFT].get(i & SEGMENT_MASK);
+  }
+
+  @Override
+  public void setCamMask(int i, byte mask) {
+    camMasks[i >>> SEGMENT_SHIFT].put(i & SEGMENT_MASK, mask);
+  }
+
+  @Override
+  public float getAnalog(int i) {
+    return analog[i >>> SEGMENT_SHIFT].get(i & SEGMENT_MASK);
+  }
+
+  @Override
+  public void setAnalog(int i, float value) {
+    analog[i >>> SEGMENT_SHIFT].put(i & SEGMENT_MASK, value);
+  }
+
+  @Override
+  public void getPointSeries(int column, int point, float[] dst) {
+    getSeries(points[column], pointOffset(point), dst, numFrames);
+  }
+
+  @Override
+  public void getAnalogSeries(int channel, float[] dst) {
+    getSeries(analog, analogOffset(channel), dst, numFrames * numSamples);
+  }
+
+  /** Copies n values starting at index i of a segmented column into dst. */
+  private static void getSeries(FloatBuffer[] segments, int i, float[] dst, int n) {
+    for (int copied = 0; copied < n;) {
+      int index = i + copied;
+      FloatBuffer view = segments[index >>> SEGMENT_SHIFT].duplicate();
+      view.position(index & SEGMENT_MASK);
+      int count = Math.min(n - copied, view.remaining());
+      view.get(dst, copied, count);
+      copied += count;
+    }
+  }
+
+  /**
+   * Drops the store's references to its buffers, so the memory is freed once the buffers are
+   * garbage collected. The memory is not freed immediately: {@link Frame} views of this store may
+   * still be held elsewhere (e.g. by the renderer), and reading through them now throws a
+   * NullPointerException instead of reading freed memory.
+   */
+  @Override
+  public void close() {
+    points = null;
+    camMasks = null;
+    analog = null;
+  }
+}
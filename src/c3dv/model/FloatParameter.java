@@ -16,13 +16,25 @@ public class FloatParameter extends Parameter {
 
   public FloatParameter(String name, int groupID, int[] dimensions, Buffer dataBuf,
       String description, boolean locked) {
-    super(name, groupID, dimensions, description, locked);
+    this(name, groupID, dimensions, dataBuf, 0, (dataBuf == null) ? 0 : dataBuf.size(), description,
+        locked);
+  }
+
+  FloatParameter(String name, int groupID, int[] dimensions, Buffer encoded, int offset, int length,
+      String description, boolean locked) {
+    super(name, groupID, dimensions, encoded, offset, length, description, locked);
+  }
 
-    if (dataBuf == null) {
-      data = null;
-    } else {
-      data = dataBuf.getFloats(dataBuf.array().length / 4);
-    }
+  /** @return The parameter's values, or null if it has none. */
+  public float[] getData() {
+    ensureDecoded();
+    return data;
+  }
+
+  @Override
+  void decode(Buffer buf, int offset, int length) {
+    data = new float[length / 4];
+    buf.getFloats(offset, data, 0, data.length);
   }
 
   @Override
@@ -32,12 +44,12 @@ public class FloatParameter extends Parameter {
 
   @Override
   public String dataString() {
-    return Arrays.toString(data);
+    return Arrays.toString(getData());
   }
 
   @Override
   public byte[] getDataBytes() {
-    if (data == null)
+    if (getData() == null)
       return null;
     ByteBuffer buf = ByteBuffer.allocate(data.length * 4);
     buf.order(java.nio.ByteOrder.LITTLE_ENDIAN);
@@ -45,4 +57,23 @@ public class FloatParameter extends Parameter {
       buf.putFloat(f);
     return buf.array();
   }
+
+  @Override
+  boolean selectData(int[] indices, int n) {
+    if (getData() == null)
+      return false;
+    int m = data.length / n;
+    float[] selected = new float[indices.length * m];
+    for (int i = 0; i < indices.length; i++)
+      System.arraycopy(data, indices[i] * m, selected, i * m, m);
+    data = selected;
+    return true;
+  }
+
+  @Override
+  Parameter copy() {
+    FloatParameter copy = new FloatParameter(name, id, copyDimensions(), null, description, locked);
+    copy.data = (getData() == null) ? null : data.clone();
+    return copy;
+  }
 }
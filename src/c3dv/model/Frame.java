@@ -1,36 +1,112 @@
 package c3dv.model;
 
 /**
- * Stores 3D position and analog data for one frame of a C3D file.
+ * Stores 3D position and analog data for one frame of a C3D file. A frame is a view of one index of
+ * a {@link FrameStore}; a frame created with the public constructor has a single-frame store of its
+ * own.
  * 
  * @author justin
  */
 public class Frame {
 
-  public float[][] analogValues;
-  public float[]   x;
-  public float[]   y;
-  public float[]   z;
-  public float[]   residual;
-  public byte[]    camMask;
+  final FrameStore store;
+  final int        index;
 
   public Frame(int numPoints, int numSamples, int numChannelsPerSample) {
-    x = new float[numPoints];
-    y = new float[numPoints];
-    z = new float[numPoints];
-    residual = new float[numPoints];
-    camMask = new byte[numPoints];
+    this(new HeapFrameStore(1, numPoints, numSamples, numChannelsPerSample), 0);
+  }
+
+  Frame(FrameStore store, int index) {
+    this.store = store;
+    this.index = index;
+  }
+
+  /** @return The store that holds this frame's values. */
+  public FrameStore getStore() {
+    return store;
+  }
+
+  /** @return Index of this frame in its store. */
+  public int getIndex() {
+    return index;
+  }
+
+  public int getNumPoints() {
+    return store.numPoints;
+  }
+
+  public int getNumSamples() {
+    return store.numSamples;
+  }
+
+  public int getNumChannels() {
+    return store.numChannels;
+  }
+
+  public float getX(int pointIndex) {
+    return store.getPoint(FrameStore.X, pointIndex * store.numFrames + index);
+  }
+
+  public float getY(int pointIndex) {
+    return store.getPoint(FrameStore.Y, pointIndex * store.numFrames + index);
+  }
+
+  public float getZ(int pointIndex) {
+    return store.getPoint(FrameStore.Z, pointIndex * store.numFrames + index);
+  }
+
+  public float getResidual(int pointIndex) {
+    return store.getPoint(FrameStore.RESIDUAL, pointIndex * store.numFrames + index);
+  }
+
+  public byte getCamMask(int pointIndex) {
+    return store.getCamMask(pointIndex * store.numFrames + index);
+  }
+
+  public float getAnalog(int sampleIndex, int channelIndex) {
+    return store.getAnalog(store.analogOffset(channelIndex) + index * store.numSamples + sampleIndex);
+  }
+
+  /** @return A copy of the values of all channels in one analog sample. */
+  public float[] getAnalogSample(int sampleIndex) {
+    float[] values = new float[store.numChannels];
+    for (int channel = 0; channel < values.length; channel++)
+      values[channel] = getAnalog(sampleIndex, channel);
+    return values;
+  }
+
+  public void setPoint(int pointIndex, float x, float y, float z, float residual, byte camMask) {
+    int i = pointIndex * store.numFrames + index;
+    store.setPoint(FrameStore.X, i, x);
+    store.setPoint(FrameStore.Y, i, y);
+    store.setPoint(FrameStore.Z, i, z);
+    store.setPoint(FrameStore.RESIDUAL, i, residual);
+    store.setCamMask(i, camMask);
+    store.setModified(true);
+  }
+
+  public void setAnalog(int sampleIndex, int channelIndex, float value) {
+    store.setAnalog(store.analogOffset(channelIndex) + index * store.numSamples + sampleIndex, value);
+    store.setModified(true);
+  }
 
-    if (numSamples > 0 && numChannelsPerSample > 0)
-      analogValues = new float[numSamples][numChannelsPerSample];
+  /** Copies the values of a frame with the same number of points, samples and channels. */
+  void copyFrom(Frame source) {
+    for (int point = 0; point < store.numPoints; point++)
+      setPoint(point, source.getX(point), source.getY(point), source.getZ(point), source
+          .getResidual(point), source.getCamMask(point));
+    if (store.hasAnalog())
+      for (int sample = 0; sample < store.numSamples; sample++)
+        for (int channel = 0; channel < store.numChannels; channel++)
+          setAnalog(sample, channel, source.getAnalog(sample, channel));
   }
 
   /** @return True if camera in [1,7] was used to calculate this point */
   public boolean cameraUsed(int pointIndex, int cameraIndex) {
-    return ((camMask[pointIndex] >> (cameraIndex - 1)) & 0x01) == 0x01;
+    return ((getCamMask(pointIndex) >> (cameraIndex - 1)) & 0x01) == 0x01;
   }
   
   public boolean isValid(int pointIndex) {
-    return residual[pointIndex] >= 0;
+    return getResidual(pointIndex) >= 0;
   }
 }
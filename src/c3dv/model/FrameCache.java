@@ -0,0 +1,349 @@
+package c3dv.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk cache of decoded frame data. Each entry stores the columns of a {@link FrameStore} as
+ * native-order floats, so a cached trial is opened by mapping the entry into a
+ * {@link DirectFrameStore} without converting anything. Entries are keyed on the source file's
+ * size, modification time, and a hash of its header and parameter sections. Each entry also
+ * records a checksum of the source's data section, which is compared on every lookup, so a source
+ * whose frames were edited in place is decoded again even if its size and modification time were
+ * kept. Computing the checksum reads the data section, but takes far less time than decoding it.
+ * Once the entries exceed the size cap, the least recently used are deleted.
+ *
+ * <pre>
+ * bytes 0-63 : header (magic, version, byte order, numFrames, numPoints, numSamples, numChannels,
+ *              checksum, key)
+ * points     : 4 columns of numFrames * numPoints floats (X, Y, Z, RESIDUAL)
+ * camMask    : numFrames * numPoints bytes, padded to a multiple of 8 bytes
+ * analog     : numFrames * numSamples * numChannels floats
+ * </pre>
+ *
+ * @author Justin Stoecker
+ */
+public class FrameCache {
+
+  static final String EXTENSION   = ".c3dc";
+  static final int    MAGIC       = 0x43334443;
+  static final int    VERSION     = 2;
+  static final int    HEADER_SIZE = 64;
+
+  /** Number of bytes written to the cache file at a time. */
+  static final int    WRITE_SIZE  = 64 * 1024;
+
+  /** Number of bytes of the source file read at a time to compute its checksum. */
+  static final int    READ_SIZE   = 1 << 20;
+
+  private final File  directory;
+  private final long  maxBytes;
+
+  /**
+   * @param directory Directory holding the cache entries; it is created if necessary.
+   * @param maxBytes Total size of the entries that are kept.
+   */
+  public FrameCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    directory.mkdirs();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @param source The C3D file.
+   * @param metadata The header and parameter sections of the file, as read from disk.
+   * @param points Labels of the selected points, or null.
+   * @param channels Labels of the selected analog channels, or null.
+   * @return The key of the source file's decoded data, or null if it could not be computed.
+   */
+  String key(File source, byte[] metadata, String[] points, String[] channels) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      ByteBuffer stamp = ByteBuffer.allocate(16);
+      stamp.putLong(source.length());
+      stamp.putLong(source.lastModified());
+      digest.update(stamp.array());
+      digest.update(metadata);
+      digest.update(Arrays.toString(points).getBytes());
+      digest.update(Arrays.toString(channels).getBytes());
+
+      StringBuilder key = new StringBuilder();
+      for (byte b : digest.digest())
+        key.append(String.format("%02x", b & 0xff));
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      System.err.println("(FrameCache.key): " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return The CRC-32C of the bytes of source from start to its end (the data section), or -1 if
+   *         the file could not be read.
+   */
+  long checksum(File source, long start) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(source, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        CRC32C crc = new CRC32C();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(READ_SIZE);
+        for (long position = start;;) {
+          chunk.clear();
+          int n = channel.read(chunk, position);
+          if (n <= 0)
+            break;
+          position += n;
+          chunk.flip();
+          crc.update(chunk);
+        }
+        return crc.getValue();
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      System.err.println("(FrameCache.checksum): " + e.getMessage());
+      return -1;
+    }
+  }
+
+  /**
+   * Maps a cached entry. The mapping is private, so values changed in the store are not written
+   * back to the cache. An entry deleted by {@link #evict()} while it is being opened is treated as
+   * missing; once it is mapped, the mapping stays valid even if the entry is deleted.
+   *
+   * @param checksum Checksum of the source's data section, which must match the entry's.
+   * @return The cached frames, or null if there is no entry with the key, checksum and dimensions.
+   */
+  synchronized FrameStore get(String key, long checksum, int numFrames, int numPoints,
+      int numSamples, int numChannels) {
+    File entry = new File(directory, key + EXTENSION);
+    if (!entry.isFile())
+      return null;
+
+    Layout layout = new Layout(numFrames, numPoints, numSamples, numChannels);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        if (channel.size() != layout.size)
+          return null;
+
+        ByteBuffer map = channel.map(MapMode.PRIVATE, 0, layout.size);
+        ByteBuffer header = newHeader(layout, checksum, key);
+        for (int i = 0; i < HEADER_SIZE; i++)
+          if (map.get(i) != header.get(i))
+            return null;
+
+        entry.setLastModified(System.currentTimeMillis());
+        return new DirectFrameStore(numFrames, numPoints, numSamples, numChannels, region(map,
+            layout.pointStart, layout.camMaskStart), region(map, layout.camMaskStart,
+            layout.camMaskStart + numFrames * numPoints), region(map, layout.analogStart,
+            (int) layout.size));
+      } finally {
+        raf.close();
+      }
+    } catch (FileNotFoundException e) {
+      return null; // evicted by another reader
+    } catch (IOException e) {
+      System.err.println("(FrameCache.get): " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Writes the frames of a store as the entry for key, then evicts the least recently used entries
+   * while the cache is larger than its cap.
+   *
+   * @param checksum Checksum of the data section the frames were decoded from.
+   * @return False if the entry could not be written.
+   */
+  boolean put(String key, long checksum, FrameStore store) {
+    Layout layout = new Layout(store.numFrames, store.numPoints, store.numSamples, store.numChannels);
+    if (layout.size > Integer.MAX_VALUE || layout.size > maxBytes)
+      return false;
+
+    File entry = new File(directory, key + EXTENSION);
+    File temp = new File(directory, key + ".tmp");
+    try {
+      RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+      try {
+        raf.setLength(0);
+        writeEntry(raf.getChannel(), layout, checksum, key, store);
+      } finally {
+        raf.close();
+      }
+
+      // entries appear complete or not at all
+      entry.delete();
+      if (!temp.renameTo(entry)) {
+        System.err.println("(FrameCache.put): could not create " + entry);
+        temp.delete();
+        return false;
+      }
+    } catch (IOException e) {
+      System.err.println("(FrameCache.put): " + e.getMessage());
+      temp.delete();
+      return false;
+    }
+
+    evict();
+    return true;
+  }
+
+  /**
+   * Deletes the least recently used entries until the entries fit within maxBytes. Lookups through
+   * this cache wait until it is done; other processes may still be opening an entry that is deleted
+   * (see {@link #get}).
+   */
+  synchronized void evict() {
+    File[] entries = directory.listFiles();
+    if (entries == null)
+      return;
+
+    Arrays.sort(entries, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(b.lastModified(), a.lastModified());
+      }
+    });
+
+    long total = 0;
+    for (File entry : entries) {
+      if (!entry.getName().endsWith(EXTENSION))
+        continue;
+      total += entry.length();
+      if (total > maxBytes)
+        entry.delete();
+    }
+  }
+
+  private void writeEntry(FileChannel channel, Layout layout, long checksum, String key,
+      FrameStore store) throws IOException {
+    ByteBuffer header = newHeader(layout, checksum, key);
+    while (header.hasRemaining())
+      channel.write(header);
+
+    ByteBuffer chunk = ByteBuffer.allocateDirect(WRITE_SIZE).order(ByteOrder.nativeOrder());
+    FloatBuffer floats = chunk.asFloatBuffer();
+
+    float[] series = new float[store.numFrames];
+    for (int column = FrameStore.X; column <= FrameStore.RESIDUAL; column++) {
+      for (int point = 0; point < store.numPoints; point++) {
+        store.getPointSeries(column, point, series);
+        writeFloats(channel, chunk, floats, series);
+      }
+    }
+
+    // the camera masks are followed by padding up to the analog section
+    int numMasks = store.numFrames * store.numPoints;
+    for (int i = 0; i < layout.analogStart - layout.camMaskStart; i++) {
+      if (!chunk.hasRemaining())
+        flush(channel, chunk);
+      chunk.put(i < numMasks ? store.getCamMask(i) : 0);
+    }
+    flush(channel, chunk);
+
+    if (store.hasAnalog()) {
+      float[] samples = new float[store.numFrames * store.numSamples];
+      for (int channelIndex = 0; channelIndex < store.numChannels; channelIndex++) {
+        store.getAnalogSeries(channelIndex, samples);
+        writeFloats(channel, chunk, floats, samples);
+      }
+    }
+  }
+
+  /** Writes values through chunk, using floats (a view of chunk) to convert them in bulk. */
+  private static void writeFloats(FileChannel channel, ByteBuffer chunk, FloatBuffer floats,
+      float[] values) throws IOException {
+    for (int offset = 0; offset < values.length;) {
+      int n = Math.min(values.length - offset, WRITE_SIZE / 4);
+      floats.clear();
+      floats.put(values, offset, n);
+      chunk.clear();
+      chunk.limit(n * 4);
+      while (chunk.hasRemaining())
+        channel.write(chunk);
+      offset += n;
+    }
+    chunk.clear();
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer chunk) throws IOException {
+    chunk.flip();
+    while (chunk.hasRemaining())
+      channel.write(chunk);
+    chunk.clear();
+  }
+
+  private static ByteBuffer newHeader(Layout layout, long checksum, String key) {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+    header.putInt(layout.numFrames);
+    header.putInt(layout.numPoints);
+    header.putInt(layout.numSamples);
+    header.putInt(layout.numChannels);
+    header.putLong(checksum);
+    header.put(key.getBytes(), 0, Math.min(key.length(), HEADER_SIZE - header.position()));
+    header.clear();
+    return header;
+  }
+
+  /** @return The bytes [start, end) of map as a separate buffer. */
+  private static ByteBuffer region(ByteBuffer map, int start, int end) {
+    ByteBuffer region = map.duplicate();
+    region.limit(end);
+    region.position(start);
+    return region.slice();
+  }
+
+  /** Byte offsets of the sections of an entry. */
+  private static class Layout {
+    final int  numFrames;
+    final int  numPoints;
+    final int  numSamples;
+    final int  numChannels;
+    final int  pointStart;
+    final int  camMaskStart;
+    final int  analogStart;
+    final long size;
+
+    Layout(int numFrames, int numPoints, int numSamples, int numChannels) {
+      this.numFrames = numFrames;
+      this.numPoints = numPoints;
+      this.numSamples = numSamples;
+      this.numChannels = numChannels;
+
+      long numValues = (long) numFrames * numPoints;
+      long camMaskStart = HEADER_SIZE + 16 * numValues;
+      long analogStart = (camMaskStart + numValues + 7) & ~7L;
+      this.size = analogStart + 4L * numFrames * numSamples * numChannels;
+
+      // offsets are only used once the size is known to fit in a mapping
+      this.pointStart = HEADER_SIZE;
+      this.camMaskStart = (int) camMaskStart;
+      this.analogStart = (int) analogStart;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package c3dv.model;
+
+import c3dv.model.C3DFile.AnalogFormat;
+import c3dv.model.C3DFile.DataFormat;
+
+/**
+ * Decodes the 3D point and analog records of a single frame. The decoders are selected once from the
+ * file's header and parameters, so a decoder can be reused for every frame of the file. Each record
+ * is read from the buffer with bulk reads and then converted in place.
+ * <p>
+ * The record layout is captured when the decoder is created. A decoder may be restricted to a
+ * subset of the points and analog channels; the other values are stepped over and never converted.
+ *
+ * @author Justin Stoecker
+ */
+class FrameDecoder {
+
+  private final PointReader   pointParser;
+  private final ChannelReader analogParser;
+
+  /**
+   * Calibration of each decoded analog channel, precomputed from ANALOG:OFFSET, ANALOG:SCALE and
+   * ANALOG:GEN_SCALE: value = (raw - channelOffset) * channelScale.
+   */
+  private final float[]       channelOffset;
+  private final float[]       channelScale;
+
+  /** 3D scale factor from the header. */
+  private final float         scale3DFactor;
+
+  /** Points and analog channels in each record. */
+  final int                   numPoints;
+  private final int           numSamples;
+  private final int           numChannels;
+
+  /** Indices of the points and analog channels that are decoded. */
+  final int[]                 points;
+  private final int[]         channels;
+  private final boolean       allPoints;
+  private final boolean       allChannels;
+
+  /** Number of bytes occupied by the 3D points at the start of each frame record. */
+  private final int           pointBytes;
+
+  /** Number of bytes occupied by each frame record. */
+  final int                   frameSize;
+
+  /** Number of frames whose points are staged before they are stored. */
+  static final int            CHUNK_FRAMES = 32;
+
+  /**
+   * Decoded point values of up to CHUNK_FRAMES frames, point-major (stageX[point * CHUNK_FRAMES +
+   * t]), so that each point's run of frames is stored with one bulk call per column. Allocated on
+   * first use.
+   */
+  private float[]             stageX;
+  private float[]             stageY;
+  private float[]             stageZ;
+  private float[]             stageResidual;
+  private byte[]              stageCamMask;
+
+  FrameDecoder(C3DFile file) {
+    this(file, null, null);
+  }
+
+  /**
+   * @param points Indices of the points to decode, or null for all points.
+   * @param channels Indices of the analog channels to decode, or null for all channels.
+   */
+  FrameDecoder(C3DFile file, int[] points, int[] channels) {
+    this.scale3DFactor = file.scale3DFactor;
+    this.numPoints = file.num3DPoints;
+    this.numSamples = file.numAnalogSamplesPerFrame;
+    this.numChannels = file.numAnalogChannels();
+    this.points = (points == null) ? range(numPoints) : points;
+    this.channels = (channels == null) ? range(numChannels) : channels;
+    this.allPoints = (points == null);
+    this.allChannels = (channels == null);
+    this.pointBytes = numPoints * 4 * (file.dataFormat == DataFormat.INTEGER ? 2 : 4);
+    this.frameSize = file.calcSizeOfFrame();
+
+    if (file.dataFormat == DataFormat.INTEGER) {
+      pointParser = new PointReaderSI();
+      if (file.analogFormat == AnalogFormat.UNSIGNED)
+        analogParser = new ChannelReaderUI();
+      else
+        analogParser = new ChannelReaderSI();
+    } else {
+      pointParser = new PointReaderFP();
+      analogParser = new ChannelReaderFP();
+    }
+
+    short[] analogOffset = file.intParamData("ANALOG", "OFFSET", null);
+    float[] analogScale = file.floatParamData("ANALOG", "SCALE", null);
+    float[] analogGenScale = file.floatParamData("ANALOG", "GEN_SCALE", null);
+    boolean calibrated = analogOffset != null && analogScale != null && analogGenScale != null;
+
+    channelOffset = new float[this.channels.length];
+    channelScale = new float[this.channels.length];
+    for (int k = 0; k < this.channels.length; k++) {
+      int channel = this.channels[k];
+      channelOffset[k] = calibrated ? analogOffset[channel] : 0;
+      channelScale[k] = calibrated ? analogScale[channel] * analogGenScale[0] : 1;
+    }
+  }
+
+  /** Creates a decoder with the same layout and selection, but its own scratch arrays. */
+  FrameDecoder(FrameDecoder other) {
+    this.scale3DFactor = other.scale3DFactor;
+    this.numPoints = other.numPoints;
+    this.numSamples = other.numSamples;
+    this.numChannels = other.numChannels;
+    this.points = other.points;
+    this.channels = other.channels;
+    this.allPoints = other.allPoints;
+    this.allChannels = other.allChannels;
+    this.pointBytes = other.pointBytes;
+    this.frameSize = other.frameSize;
+    this.channelOffset = other.channelOffset;
+    this.channelScale = other.channelScale;
+
+    if (other.pointParser instanceof PointReaderSI)
+      pointParser = new PointReaderSI();
+    else
+      pointParser = new PointReaderFP();
+
+    if (other.analogParser instanceof ChannelReaderUI)
+      analogParser = new ChannelReaderUI();
+    else if (other.analogParser instanceof ChannelReaderSI)
+      analogParser = new ChannelReaderSI();
+    else
+      analogParser = new ChannelReaderFP();
+  }
+
+  /**
+   * Reads the selected items of each group of count items, where each item is width shorts (e.g.
+   * the 4 words of a point, or one channel of an analog sample). Unselected items are stepped over.
+   */
+  private static void readSelected(Buffer buf, int offset, short[] dst, int groups, int count,
+      int[] selection, boolean all, int width) {
+    if (all) {
+      buf.getSShorts(offset, dst, 0, groups * count * width);
+      return;
+    }
+    for (int group = 0, k = 0; group < groups; group++, k += selection.length * width)
+      for (int i = 0; i < selection.length; i++)
+        buf.getSShorts(offset + (group * count + selection[i]) * width * 2, dst, k + i * width, width);
+  }
+
+  /** Floating-point version of {@link #readSelected(Buffer, int, short[], int, int, int[], boolean, int)}. */
+  private static void readSelected(Buffer buf, int offset, float[] dst, int groups, int count,
+      int[] selection, boolean all, int width) {
+    if (all) {
+      buf.getFloats(offset, dst, 0, groups * count * width);
+      return;
+    }
+    for (int group = 0, k = 0; group < groups; group++, k += selection.length * width)
+      for (int i = 0; i < selection.length; i++)
+        buf.getFloats(offset + (group * count + selection[i]) * width * 4, dst, k + i * width, width);
+  }
+
+  private static int[] range(int n) {
+    int[] indices = new int[n];
+    for (int i = 0; i < n; i++)
+      indices[i] = i;
+    return indices;
+  }
+
+  /** Allocates a frame large enough to hold the decoded values of one record. */
+  Frame newFrame() {
+    return new Frame(points.length, numSamples, channels.length);
+  }
+
+  /** @return True if the decoded values of numFrames records fit in a frame store. */
+  boolean fitsStore(int numFrames) {
+    return FrameStore.fits(numFrames, points.length, numSamples, channels.length);
+  }
+
+  /** Allocates a store large enough to hold the decoded values of numFrames records. */
+  FrameStore newStore(int numFrames, boolean offHeap) {
+    if (offHeap)
+      return new DirectFrameStore(numFrames, points.length, numSamples, channels.length);
+    return new HeapFrameStore(numFrames, points.length, numSamples, channels.length);
+  }
+
+  /** Decodes the frame record that starts at byte offset (0-based) of buf into frame. */
+  void decode(Buffer buf, int offset, Frame frame) {
+    decode(buf, offset, frame.store, frame.index);
+  }
+
+  /** Decodes the frame record that starts at byte offset (0-based) of buf into a frame of store. */
+  void decode(Buffer buf, int offset, FrameStore store, int frameIndex) {
+    decode(buf, offset, store, frameIndex, 1);
+  }
+
+  /**
+   * Decodes count consecutive frame records, the first of which starts at byte offset (0-based) of
+   * buf, into frames frameIndex to frameIndex + count - 1 of store.
+   */
+  void decode(Buffer buf, int offset, FrameStore store, int frameIndex, int count) {
+    if (stageX == null) {
+      int size = points.length * CHUNK_FRAMES;
+      stageX = new float[size];
+      stageY = new float[size];
+      stageZ = new float[size];
+      stageResidual = new float[size];
+      stageCamMask = new byte[size];
+    }
+
+    for (int from = 0; from < count; from += CHUNK_FRAMES) {
+      int n = Math.min(CHUNK_FRAMES, count - from);
+      for (int t = 0; t < n; t++) {
+        int recordOffset = offset + (from + t) * frameSize;
+        pointParser.parsePoints(buf, recordOffset, t);
+        if (store.hasAnalog())
+          analogParser.parseAnalog(buf, recordOffset + pointBytes, store, frameIndex + from + t);
+      }
+      storePoints(store, frameIndex + from, n);
+    }
+  }
+
+  /** Stores the first n staged frames of every point as frames frameIndex onward of store. */
+  private void storePoints(FrameStore store, int frameIndex, int n) {
+    for (int point = 0; point < points.length; point++) {
+      int i = store.pointOffset(point) + frameIndex;
+      int from = point * CHUNK_FRAMES;
+      store.setPoints(FrameStore.X, i, stageX, from, n);
+      store.setPoints(FrameStore.Y, i, stageY, from, n);
+      store.setPoints(FrameStore.Z, i, stageZ, from, n);
+      store.setPoints(FrameStore.RESIDUAL, i, stageResidual, from, n);
+      store.setCamMasks(i, stageCamMask, from, n);
+    }
+  }
+
+  /**
+   * Decodes only the analog samples of a frame into a frame of store; offset (0-based) is the start
+   * of the analog samples in buf, as in a compressed data section.
+   */
+  void decodeAnalog(Buffer buf, int offset, FrameStore store, int frameIndex) {
+    if (store.hasAnalog())
+      analogParser.parseAnalog(buf, offset, store, frameIndex);
+  }
+
+  /** @return Number of bytes occupied by the analog samples of each frame record. */
+  int analogSize() {
+    return frameSize - pointBytes;
+  }
+
+  /** Reads the 3D points of a frame into frame t of the staging arrays */
+  interface PointReader {
+    void parsePoints(Buffer buf, int offset, int t);
+  }
+
+  /** Signed integer point parser */
+  class PointReaderSI implements PointReader {
+    private final short[] words = new short[points.length * 4];
+
+    public void parsePoints(Buffer buf, int offset, int t) {
+      readSelected(buf, offset, words, 1, numPoints, points, allPoints, 4);
+      float scale = scale3DFactor;
+      for (int i = 0, j = t; i < words.length; i += 4, j += CHUNK_FRAMES) {
+        stageX[j] = words[i] * scale;
+        stageY[j] = words[i + 1] * scale;
+        stageZ[j] = words[i + 2] * scale;
+        short word4 = words[i + 3];
+        stageCamMask[j] = (byte) ((word4 >> 8) & 0xff);
+        stageResidual[j] = (word4 == -1) ? -1 : (word4 & 0xff) * scale;
+      }
+    }
+  }
+
+  /** Floating-point point parser */
+  class PointReaderFP implements PointReader {
+    private final float[] values = new float[points.length * 4];
+
+    public void parsePoints(Buffer buf, int offset, int t) {
+      readSelected(buf, offset, values, 1, numPoints, points, allPoints, 4);
+      float scale = -scale3DFactor;
+      for (int i = 0, j = t; i < values.length; i += 4, j += CHUNK_FRAMES) {
+        stageX[j] = values[i];
+        stageY[j] = values[i + 1];
+        stageZ[j] = values[i + 2];
+        short word4 = (short) values[i + 3];
+        stageCamMask[j] = (byte) ((word4 >> 8) & 0xff);
+        stageResidual[j] = (word4 == -1) ? -1 : (word4 & 0xff) * scale;
+      }
+    }
+  }
+
+  /** Reads the analog samples of a frame */
+  interface ChannelReader {
+    void parseAnalog(Buffer buf, int offset, FrameStore store, int frameIndex);
+  }
+
+  /** Signed integer channel parser */
+  class ChannelReaderSI implements ChannelReader {
+    private final short[] words = new short[numSamples * channels.length];
+    private final float[] block = new float[numSamples * channels.length];
+
+    public void parseAnalog(Buffer buf, int offset, FrameStore store, int frameIndex) {
+      readSelected(buf, offset, words, numSamples, numChannels, channels, allChannels, 1);
+      int n = channels.length;
+      for (int k = 0; k < n; k++) {
+        float offsetK = channelOffset[k];
+        float scaleK = channelScale[k];
+        for (int sample = 0, i = k, j = k * numSamples; sample < numSamples; sample++, i += n, j++)
+          block[j] = (words[i] - offsetK) * scaleK;
+      }
+      store.setAnalogFrame(frameIndex, block);
+    }
+  }
+
+  /** Unsigned integer channel parser */
+  class ChannelReaderUI implements ChannelReader {
+    private final short[] words = new short[numSamples * channels.length];
+    private final float[] block = new float[numSamples * channels.length];
+
+    public void parseAnalog(Buffer buf, int offset, FrameStore store, int frameIndex) {
+      readSelected(buf, offset, words, numSamples, numChannels, channels, allChannels, 1);
+      int n = channels.length;
+      for (int k = 0; k < n; k++) {
+        float offsetK = channelOffset[k];
+        float scaleK = channelScale[k];
+        for (int sample = 0, i = k, j = k * numSamples; sample < numSamples; sample++, i += n, j++)
+          block[j] = ((words[i] & 0xffff) - offsetK) * scaleK;
+      }
+      store.setAnalogFrame(frameIndex, block);
+    }
+  }
+
+  /** Floating-point channel parser */
+  class ChannelReaderFP implements ChannelReader {
+    private final float[] values = new float[numSamples * channels.length];
+    private final float[] block  = new float[numSamples * channels.length];
+
+    public void parseAnalog(Buffer buf, int offset, FrameStore store, int frameIndex) {
+      readSelected(buf, offset, values, numSamples, numChannels, channels, allChannels, 1);
+      int n = channels.length;
+      for (int k = 0; k < n; k++) {
+        float offsetK = channelOffset[k];
+        float scaleK = channelScale[k];
+        for (int sample = 0, i = k, j = k * numSamples; sample < numSamples; sample++, i += n, j++)
+          block[j] = (values[i] - offsetK) * scaleK;
+      }
+      store.setAnalogFrame(frameIndex, block);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package c3dv.model;
+
+/**
+ * Provides access to the frames of a C3D file without requiring that they are all decoded up front.
+ * 
+ * @author Justin Stoecker
+ */
+public interface FrameSource {
+
+  /** @return The number of frames available from this source. */
+  int getNumFrames();
+
+  /** @return The frame at index (0-based; index 0 is the file's first 3D frame). */
+  Frame getFrame(int index);
+}
@@ -0,0 +1,144 @@
+package c3dv.model;
+
+/**
+ * Columnar storage for the 3D point and analog data of a sequence of frames. Each quantity is kept
+ * in a single column, ordered so that the values of one point (or analog channel) over time are
+ * contiguous:
+ * 
+ * <pre>
+ * column[pointOffset(point) + frame]
+ * analog[analogOffset(channel) + frame * numSamples + sample]
+ * </pre>
+ * 
+ * {@link Frame} objects returned by {@link #getFrame(int)} are lightweight views into the columns.
+ * Subclasses decide where the columns live ({@link HeapFrameStore}, {@link DirectFrameStore}).
+ * 
+ * @author Justin Stoecker
+ */
+public abstract class FrameStore implements FrameSource {
+
+  /** Point columns */
+  public static final int X        = 0;
+  public static final int Y        = 1;
+  public static final int Z        = 2;
+  public static final int RESIDUAL = 3;
+
+  public final int        numFrames;
+  public final int        numPoints;
+  public final int        numSamples;
+  public final int        numChannels;
+
+  /** Largest number of values in a column, which are indexed with ints. */
+  public static final long MAX_COLUMN_VALUES = Integer.MAX_VALUE;
+
+  private boolean          modified;
+
+  /** @throws IllegalArgumentException If a column would hold more than MAX_COLUMN_VALUES values. */
+  protected FrameStore(int numFrames, int numPoints, int numSamples, int numChannels) {
+    if (!fits(numFrames, numPoints, numSamples, numChannels))
+      throw new IllegalArgumentException(numFrames + " frames of " + numPoints + " points and "
+          + numChannels + " analog channels do not fit in a frame store");
+    this.numFrames = numFrames;
+    this.numPoints = numPoints;
+    this.numSamples = numSamples;
+    this.numChannels = numChannels;
+  }
+
+  /** @return True if no column of a store with these dimensions exceeds MAX_COLUMN_VALUES values. */
+  public static boolean fits(int numFrames, int numPoints, int numSamples, int numChannels) {
+    return (long) numFrames * numPoints <= MAX_COLUMN_VALUES
+        && (long) numFrames * numSamples * numChannels <= MAX_COLUMN_VALUES;
+  }
+
+  @Override
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  @Override
+  public Frame getFrame(int index) {
+    return new Frame(this, index);
+  }
+
+  /** @return Index of the point's value in the first frame; the following numFrames values are its time series. */
+  public int pointOffset(int point) {
+    return point * numFrames;
+  }
+
+  /** @return Index of the channel's first sample; the following numFrames * numSamples values are its time series. */
+  public int analogOffset(int channel) {
+    return channel * numFrames * numSamples;
+  }
+
+  /** @return True if the store has analog values. */
+  public boolean hasAnalog() {
+    return numSamples > 0 && numChannels > 0;
+  }
+
+  /**
+   * @return True if values were changed through {@link Frame}'s setters since the store was filled.
+   *         Changes made directly through the store's setters are not tracked; code that edits
+   *         frames that way calls {@link #setModified(boolean)}.
+   */
+  public boolean isModified() {
+    return modified;
+  }
+
+  public void setModified(boolean modified) {
+    this.modified = modified;
+  }
+
+  public abstract float getPoint(int column, int i);
+
+  public abstract void setPoint(int column, int i, float value);
+
+  public abstract byte getCamMask(int i);
+
+  public abstract void setCamMask(int i, byte mask);
+
+  public abstract float getAnalog(int i);
+
+  public abstract void setAnalog(int i, float value);
+
+  /** Stores n values of a point column, src[from] to src[from + n - 1], at indices i onward. */
+  public void setPoints(int column, int i, float[] src, int from, int n) {
+    for (int k = 0; k < n; k++)
+      setPoint(column, i + k, src[from + k]);
+  }
+
+  /** Stores n camera masks, src[from] to src[from + n - 1], at indices i onward. */
+  public void setCamMasks(int i, byte[] src, int from, int n) {
+    for (int k = 0; k < n; k++)
+      setCamMask(i + k, src[from + k]);
+  }
+
+  /**
+   * Stores the analog values of one frame. The values are ordered by channel, then sample:
+   * values[channel * numSamples + sample].
+   */
+  public void setAnalogFrame(int frameIndex, float[] values) {
+    for (int channel = 0, i = 0; channel < numChannels; channel++) {
+      int offset = analogOffset(channel) + frameIndex * numSamples;
+      for (int sample = 0; sample < numSamples; sample++)
+        setAnalog(offset + sample, values[i++]);
+    }
+  }
+
+  /** Copies the time series of one point column (X, Y, Z or RESIDUAL) into dst. */
+  public void getPointSeries(int column, int point, float[] dst) {
+    int offset = pointOffset(point);
+    for (int frame = 0; frame < numFrames; frame++)
+      dst[frame] = getPoint(column, offset + frame);
+  }
+
+  /** Copies all numFrames * numSamples samples of one analog channel into dst. */
+  public void getAnalogSeries(int channel, float[] dst) {
+    int offset = analogOffset(channel);
+    for (int i = 0; i < numFrames * numSamples; i++)
+      dst[i] = getAnalog(offset + i);
+  }
+
+  /** Releases the storage held by this store. The store and its frames must not be used afterward. */
+  public void close() {
+  }
+}
@@ -0,0 +1,387 @@
+package c3dv.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills the gaps in the trajectories of markers that were occluded: runs of frames in which a point
+ * is invalid (see {@link Frame#isValid(int)}) between two valid frames. Only gaps of at most the
+ * file's maxInterpolationGap frames (or the limit set with {@link #setMaxGap(int)}) are filled, and
+ * gaps at the start or end of the trial are left alone since they are not bounded on both sides.
+ * Filled points get a residual of 0, which marks them as interpolated, and no cameras.
+ * <p>
+ * A gap is filled either with a cubic spline (a cubic Hermite curve through the valid frames on
+ * either side of the gap, with the velocity at each end taken from the neighbouring frames), or
+ * with the pattern of another marker: the marker whose offset from the gapped marker changes the
+ * least across the gap, and which is valid throughout it, is followed while the offset is blended
+ * from its value before the gap to its value after. A gap for which no pattern marker is valid is
+ * filled with a spline.
+ * <p>
+ * The frames must be decoded into {@link C3DFile#frames}. The gaps are located before any are
+ * filled, so pattern markers are only read where they were originally valid and the result does
+ * not depend on the order in which markers are filled (or on whether that is done in parallel).
+ *
+ * @author Justin Stoecker
+ */
+public class GapFiller {
+
+  public enum Method {
+    SPLINE, PATTERN
+  }
+
+  /** Number of markers filled by a single task. */
+  static final int PARALLEL_GRAIN = 4;
+
+  private Method   method         = Method.SPLINE;
+  private int      maxGap         = -1;
+  private boolean  parallel;
+
+  private FrameStore store;
+  private int        numFrames;
+
+  /** Start (inclusive) and end (exclusive) frame of each gap of each marker, as they were found. */
+  private int[][]    gaps;
+
+  /**
+   * Markers that were valid in each frame before any gaps were filled, as a bit set of validWords
+   * longs per frame. Frame-major, so the markers valid across a gap are found from a few
+   * consecutive words rather than by searching the gaps of every marker.
+   */
+  private long[]     valid;
+  private int        validWords;
+
+  /** Counts of the gaps found and filled by {@link GapFiller#fill(C3DFile)}. */
+  public static class Statistics {
+    /** Gaps found, including those that were not filled. */
+    public int  gaps;
+    /** Gaps that were filled, and how many of those followed a pattern marker. */
+    public int  filledGaps;
+    public int  patternGaps;
+    /** Points that were filled. */
+    public long filledPoints;
+    /** Gaps that were longer than the maximum gap, or at the start or end of the trial. */
+    public int  longGaps;
+    public int  edgeGaps;
+    /** Length of the longest gap found, in frames. */
+    public int  longestGap;
+    /** Markers with at least one filled gap. */
+    public int  markersFilled;
+    /** Time taken, in milliseconds. */
+    public long millis;
+
+    synchronized void add(Statistics other) {
+      gaps += other.gaps;
+      filledGaps += other.filledGaps;
+      patternGaps += other.patternGaps;
+      filledPoints += other.filledPoints;
+      longGaps += other.longGaps;
+      edgeGaps += other.edgeGaps;
+      longestGap = Math.max(longestGap, other.longestGap);
+      markersFilled += other.markersFilled;
+    }
+
+    @Override
+    public String toString() {
+      return "filled " + filledGaps + " of " + gaps + " gaps (" + filledPoints + " points, "
+          + patternGaps + " from a pattern marker) in " + markersFilled + " markers; skipped "
+          + longGaps + " long and " + edgeGaps + " edge gaps; longest gap " + longestGap
+          + " frames; " + millis + " ms";
+    }
+  }
+
+  /** Sets how gaps are filled (default {@link Method#SPLINE}). */
+  public void setMethod(Method method) {
+    this.method = method;
+  }
+
+  /** Sets the longest gap (in frames) that is filled; if negative, the file's maxInterpolationGap. */
+  public void setMaxGap(int maxGap) {
+    this.maxGap = maxGap;
+  }
+
+  /** Fills the markers on all cores, a few markers per task. */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Fills the gaps of every marker of file. The frames are marked as modified, so they are encoded
+   * again when the file is written.
+   *
+   * @return What was found and filled, or null if the file's frames have not been decoded.
+   */
+  public Statistics fill(C3DFile file) {
+    if (file.frames == null) {
+      System.err.println("(GapFiller.fill): the frames of the file have not been decoded.");
+      return null;
+    }
+
+    long start = System.nanoTime();
+    store = file.frames;
+    numFrames = store.numFrames;
+    int numPoints = store.numPoints;
+    int limit = (maxGap < 0) ? file.maxInterpolationGap : maxGap;
+
+    Statistics stats = new Statistics();
+    if (numPoints == 0) {
+      store = null;
+      stats.millis = (System.nanoTime() - start) / 1000000;
+      return stats;
+    }
+
+    gaps = new int[numPoints][];
+    if (parallel && numPoints > PARALLEL_GRAIN) {
+      ForkJoinPool.commonPool().invoke(new FillTask(0, numPoints, true, limit, stats));
+      markValid(numPoints);
+      ForkJoinPool.commonPool().invoke(new FillTask(0, numPoints, false, limit, stats));
+    } else {
+      findGaps(0, numPoints);
+      markValid(numPoints);
+      fillGaps(0, numPoints, limit, stats);
+    }
+
+    if (stats.filledGaps > 0)
+      store.setModified(true);
+    store = null;
+    gaps = null;
+    valid = null;
+    stats.millis = (System.nanoTime() - start) / 1000000;
+    return stats;
+  }
+
+  /** Records the gaps of markers [from, to), from the residuals of the points. */
+  private void findGaps(int from, int to) {
+    int[] found = new int[16];
+    for (int point = from; point < to; point++) {
+      int offset = store.pointOffset(point);
+      int n = 0;
+      for (int frame = 0; frame < numFrames; frame++) {
+        if (store.getPoint(FrameStore.RESIDUAL, offset + frame) >= 0)
+          continue;
+        int end = frame + 1;
+        while (end < numFrames && store.getPoint(FrameStore.RESIDUAL, offset + end) < 0)
+          end++;
+        if (n + 2 > found.length)
+          found = Arrays.copyOf(found, found.length * 2);
+        found[n++] = frame;
+        found[n++] = end;
+        frame = end;
+      }
+      gaps[point] = Arrays.copyOf(found, n);
+    }
+  }
+
+  /** Sets the bits of the valid markers of each frame, from the gaps that were found. */
+  private void markValid(int numPoints) {
+    validWords = (numPoints + 63) >>> 6;
+    valid = new long[numFrames * validWords];
+    long lastWord = (numPoints % 64 == 0) ? -1L : (1L << numPoints) - 1;
+    for (int frame = 0; frame < numFrames; frame++) {
+      int base = frame * validWords;
+      for (int word = 0; word < validWords - 1; word++)
+        valid[base + word] = -1L;
+      valid[base + validWords - 1] = lastWord;
+    }
+
+    for (int point = 0; point < numPoints; point++) {
+      long bit = 1L << point;
+      int word = point >>> 6;
+      int[] pointGaps = gaps[point];
+      for (int i = 0; i < pointGaps.length; i += 2)
+        for (int frame = pointGaps[i]; frame < pointGaps[i + 1]; frame++)
+          valid[frame * validWords + word] &= ~bit;
+    }
+  }
+
+  /** @return True if point was valid in frame before any gaps were filled. */
+  private boolean wasValid(int point, int frame) {
+    return (valid[frame * validWords + (point >>> 6)] & (1L << point)) != 0;
+  }
+
+  /** Fills the gaps of markers [from, to) that are at most limit frames long. */
+  private void fillGaps(int from, int to, int limit, Statistics total) {
+    Statistics stats = new Statistics();
+    long[] candidates = new long[validWords];
+    for (int point = from; point < to; point++) {
+      int[] pointGaps = gaps[point];
+      int filledBefore = stats.filledGaps;
+      int pattern = -1;
+      for (int i = 0; i < pointGaps.length; i += 2) {
+        int gapStart = pointGaps[i];
+        int gapEnd = pointGaps[i + 1];
+        int length = gapEnd - gapStart;
+        stats.gaps++;
+        stats.longestGap = Math.max(stats.longestGap, length);
+        if (gapStart == 0 || gapEnd == numFrames) {
+          stats.edgeGaps++;
+        } else if (length > limit) {
+          stats.longGaps++;
+        } else {
+          if (method == Method.PATTERN)
+            pattern = findPattern(point, pattern, gapStart - 1, gapEnd, candidates);
+          if (pattern >= 0) {
+            fillPattern(point, pattern, gapStart - 1, gapEnd);
+            stats.patternGaps++;
+          } else {
+            fillSpline(point, gapStart - 1, gapEnd);
+          }
+          stats.filledGaps++;
+          stats.filledPoints += length;
+        }
+      }
+      if (stats.filledGaps > filledBefore)
+        stats.markersFilled++;
+    }
+    total.add(stats);
+  }
+
+  /**
+   * Fills the frames between the valid frames a and b of point with a cubic Hermite curve. The
+   * velocity at each end is the difference to the frame beyond it, if that frame was valid, and
+   * otherwise the average velocity across the gap.
+   */
+  private void fillSpline(int point, int a, int b) {
+    int offset = store.pointOffset(point);
+    boolean beforeValid = a > 0 && wasValid(point, a - 1);
+    boolean afterValid = b + 1 < numFrames && wasValid(point, b + 1);
+    float h = b - a;
+
+    for (int column = FrameStore.X; column <= FrameStore.Z; column++) {
+      float pa = store.getPoint(column, offset + a);
+      float pb = store.getPoint(column, offset + b);
+      float secant = (pb - pa) / h;
+      float va = beforeValid ? pa - store.getPoint(column, offset + a - 1) : secant;
+      float vb = afterValid ? store.getPoint(column, offset + b + 1) - pb : secant;
+      for (int frame = a + 1; frame < b; frame++) {
+        float t = (frame - a) / h;
+        float t2 = t * t;
+        float t3 = t2 * t;
+        float value = (2 * t3 - 3 * t2 + 1) * pa + (t3 - 2 * t2 + t) * h * va
+            + (-2 * t3 + 3 * t2) * pb + (t3 - t2) * h * vb;
+        store.setPoint(column, offset + frame, value);
+      }
+    }
+    markFilled(offset, a, b);
+  }
+
+  /**
+   * Fills the frames between the valid frames a and b of point by following pattern, with the
+   * offset between the two markers blended linearly from frame a to frame b.
+   */
+  private void fillPattern(int point, int pattern, int a, int b) {
+    int offset = store.pointOffset(point);
+    int patternOffset = store.pointOffset(pattern);
+    float h = b - a;
+
+    for (int column = FrameStore.X; column <= FrameStore.Z; column++) {
+      float da = store.getPoint(column, offset + a) - store.getPoint(column, patternOffset + a);
+      float db = store.getPoint(column, offset + b) - store.getPoint(column, patternOffset + b);
+      for (int frame = a + 1; frame < b; frame++) {
+        float t = (frame - a) / h;
+        store.setPoint(column, offset + frame, store.getPoint(column, patternOffset + frame) + da
+            + (db - da) * t);
+      }
+    }
+    markFilled(offset, a, b);
+  }
+
+  /** Marks the frames between a and b as interpolated: residual 0, no cameras. */
+  private void markFilled(int offset, int a, int b) {
+    for (int frame = a + 1; frame < b; frame++) {
+      store.setPoint(FrameStore.RESIDUAL, offset + frame, 0);
+      store.setCamMask(offset + frame, (byte) 0);
+    }
+  }
+
+  /**
+   * @return The marker that was valid in every frame from a to b and whose offset from point
+   *         changes the least between a and b, or -1 if there is none. The search starts with
+   *         previous, the pattern of the last gap of point, which is usually still the best.
+   *         candidates is scratch space of validWords longs.
+   */
+  private int findPattern(int point, int previous, int a, int b, long[] candidates) {
+    for (int word = 0; word < validWords; word++) {
+      long bits = -1L;
+      for (int frame = a; frame <= b; frame++)
+        bits &= valid[frame * validWords + word];
+      candidates[word] = bits;
+    }
+    candidates[point >>> 6] &= ~(1L << point);
+
+    int offset = store.pointOffset(point);
+    int best = -1;
+    float bestChange = Float.POSITIVE_INFINITY;
+    if (previous >= 0 && (candidates[previous >>> 6] & (1L << previous)) != 0) {
+      best = previous;
+      bestChange = offsetChange(offset, store.pointOffset(previous), a, b, bestChange);
+    }
+
+    for (int word = 0; word < validWords; word++) {
+      for (long bits = candidates[word]; bits != 0; bits &= bits - 1) {
+        int candidate = (word << 6) + Long.numberOfTrailingZeros(bits);
+        if (candidate == previous)
+          continue;
+        float change = offsetChange(offset, store.pointOffset(candidate), a, b, bestChange);
+        // ties go to the lower index, so the choice does not depend on previous
+        if (change < bestChange || (change == bestChange && candidate < best)) {
+          bestChange = change;
+          best = candidate;
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @return The squared change in the offset between two points from frame a to frame b, or
+   *         infinity once it exceeds bound (most candidates are rejected after the X column).
+   */
+  private float offsetChange(int offset, int candidateOffset, int a, int b, float bound) {
+    float change = 0;
+    for (int column = FrameStore.X; column <= FrameStore.Z; column++) {
+      float da = store.getPoint(column, offset + a) - store.getPoint(column, candidateOffset + a);
+      float db = store.getPoint(column, offset + b) - store.getPoint(column, candidateOffset + b);
+      change += (db - da) * (db - da);
+      if (change > bound)
+        return Float.POSITIVE_INFINITY;
+    }
+    return change;
+  }
+
+  /**
+   * Splits a range of markers until it is small enough for one thread. A task either finds the gaps
+   * of its markers or fills them; all gaps are found before any are filled.
+   */
+  private class FillTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final int        from;
+    final int        to;
+    final boolean    find;
+    final int        limit;
+    final Statistics stats;
+
+    FillTask(int from, int to, boolean find, int limit, Statistics stats) {
+      this.from = from;
+      this.to = to;
+      this.find = find;
+      this.limit = limit;
+      this.stats = stats;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= PARALLEL_GRAIN) {
+        if (find)
+          findGaps(from, to);
+        else
+          fillGaps(from, to, limit, stats);
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new FillTask(from, mid, find, limit, stats), new FillTask(mid, to, find, limit,
+            stats));
+      }
+    }
+  }
+}
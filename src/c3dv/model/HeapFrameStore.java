@@ -0,0 +1,98 @@
+package c3dv.model;
+
+/**
+ * Frame store that keeps each column in a primitive array on the Java heap. The arrays are exposed
+ * so that analyses can scan a point's time series in place.
+ * 
+ * @author Justin Stoecker
+ */
+public class HeapFrameStore extends FrameStore {
+
+  public final float[] x;
+  public final float[] y;
+  public final float[] z;
+  public final float[] residual;
+  public final byte[]  camMask;
+  public final float[] analog;
+
+  public HeapFrameStore(int numFrames, int numPoints, int numSamples, int numChannels) {
+    super(numFrames, numPoints, numSamples, numChannels);
+
+    x = new float[numFrames * numPoints];
+    y = new float[numFrames * numPoints];
+    z = new float[numFrames * numPoints];
+    residual = new float[numFrames * numPoints];
+    camMask = new byte[numFrames * numPoints];
+    analog = new float[numFrames * numSamples * numChannels];
+  }
+
+  private float[] column(int column) {
+    switch (column) {
+    case X:
+      return x;
+    case Y:
+      return y;
+    case Z:
+      return z;
+    default:
+      return residual;
+    }
+  }
+
+  @Override
+  public float getPoint(int column, int i) {
+    return column(column)[i];
+  }
+
+  @Override
+  public void setPoint(int column, int i, float value) {
+    column(column)[i] = value;
+  }
+
+  @Override
+  public byte getCamMask(int i) {
+    return camMask[i];
+  }
+
+  @Override
+  public void setCamMask(int i, byte mask) {
+    camMask[i] = mask;
+  }
+
+  @Override
+  public float getAnalog(int i) {
+    return analog[i];
+  }
+
+  @Override
+  public void setAnalog(int i, float value) {
+    analog[i] = value;
+  }
+
+  @Override
+  public void setPoints(int column, int i, float[] src, int from, int n) {
+    System.arraycopy(src, from, column(column), i, n);
+  }
+
+  @Override
+  public void setCamMasks(int i, byte[] src, int from, int n) {
+    System.arraycopy(src, from, camMask, i, n);
+  }
+
+  @Override
+  public void setAnalogFrame(int frameIndex, float[] values) {
+    for (int channel = 0; channel < numChannels; channel++)
+      System.arraycopy(values, channel * numSamples, analog, analogOffset(channel) + frameIndex
+          * numSamples, numSamples);
+  }
+
+  @Override
+  public void getPointSeries(int column, int point, float[] dst) {
+    System.arraycopy(column(column), pointOffset(point), dst, 0, numFrames);
+  }
+
+  @Override
+  public void getAnalogSeries(int channel, float[] dst) {
+    System.arraycopy(analog, analogOffset(channel), dst, 0, numFrames * numSamples);
+  }
+}
@@ -14,9 +14,25 @@ public class IntParameter extends Parameter {
 
   public IntParameter(String name, int groupID, int[] dimensions, Buffer dataBuf,
       String description, boolean locked) {
-    super(name, groupID, dimensions, description, locked);
+    this(name, groupID, dimensions, dataBuf, 0, (dataBuf == null) ? 0 : dataBuf.size(), description,
+        locked);
+  }
+
+  IntParameter(String name, int groupID, int[] dimensions, Buffer encoded, int offset, int length,
+      String description, boolean locked) {
+    super(name, groupID, dimensions, encoded, offset, length, description, locked);
+  }
 
-    data = (dataBuf == null) ? null : dataBuf.getSShorts(dataBuf.array().length / 2);
+  /** @return The parameter's values, or null if it has none. */
+  public short[] getData() {
+    ensureDecoded();
+    return data;
+  }
+
+  @Override
+  void decode(Buffer buf, int offset, int length) {
+    data = new short[length / 2];
+    buf.getSShorts(offset, data, 0, data.length);
   }
 
   @Override
@@ -26,12 +42,12 @@ public class IntParameter extends Parameter {
 
   @Override
   public String dataString() {
-    return Arrays.toString(data);
+    return Arrays.toString(getData());
   }
 
   @Override
   public byte[] getDataBytes() {
-    if (data == null)
+    if (getData() == null)
       return null;
     ByteBuffer buf = ByteBuffer.allocate(data.length * 2);
     buf.order(java.nio.ByteOrder.LITTLE_ENDIAN);
@@ -39,4 +55,23 @@ public class IntParameter extends Parameter {
       buf.putShort(s);
     return buf.array();
   }
+
+  @Override
+  boolean selectData(int[] indices, int n) {
+    if (getData() == null)
+      return false;
+    int m = data.length / n;
+    short[] selected = new short[indices.length * m];
+    for (int i = 0; i < indices.length; i++)
+      System.arraycopy(data, indices[i] * m, selected, i * m, m);
+    data = selected;
+    return true;
+  }
+
+  @Override
+  Parameter copy() {
+    IntParameter copy = new IntParameter(name, id, copyDimensions(), null, description, locked);
+    copy.data = (getData() == null) ? null : data.clone();
+    return copy;
+  }
 }
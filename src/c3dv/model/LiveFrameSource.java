@@ -0,0 +1,174 @@
+package c3dv.model;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Frame source for a trial that is still being captured. Frames are read from a
+ * {@link C3DFrameStream} (e.g. opened on a socket or pipe) by an ingest thread and stored in a ring
+ * that holds the most recent frames. The ingest thread never waits for readers: a frame is
+ * overwritten once capacity newer frames have arrived, whether or not it was read, and readers copy
+ * frames out of the ring and detect frames that were overwritten while being copied. This keeps the
+ * ingest rate and latency independent of how long the renderer or the tables take.
+ *
+ * <pre>
+ * LiveFrameSource live = new LiveFrameSource(new C3DReader().openStream(socketChannel), 4096);
+ * live.start();
+ * Frame frame = live.newFrame();
+ * long index = live.copyLatest(frame); // from the rendering thread, as often as needed
+ * ...
+ * live.stop();
+ * </pre>
+ *
+ * The stream's file describes the frames; while the source is live its frames are provided by this
+ * source, and {@link C3DFile#getNumFrames()} is the number of frames received so far.
+ *
+ * @author Justin Stoecker
+ */
+public class LiveFrameSource implements FrameSource {
+
+  /** Default number of frames held by the ring (about 4 seconds at 1 kHz). */
+  public static final int      CAPACITY  = 4096;
+
+  private final C3DFrameStream stream;
+  private final C3DFile        file;
+  private final FrameStore     ring;
+  private final Frame[]        slots;
+  private final int            mask;
+
+  /** Index of the frame being written by the ingest thread; its slot must not be read. */
+  private final AtomicLong     claimed   = new AtomicLong(-1);
+
+  /** Index of the newest frame that was completely written to the ring. */
+  private final AtomicLong     published = new AtomicLong(-1);
+
+  private Thread               ingest;
+  private volatile boolean     running;
+
+  /**
+   * @param stream Stream positioned before the first live frame; it is read until it ends or the
+   *          source is stopped.
+   * @param capacity Number of frames held by the ring, rounded up to a power of two.
+   */
+  public LiveFrameSource(C3DFrameStream stream, int capacity) {
+    this.stream = stream;
+    this.file = stream.getFile();
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.mask = size - 1;
+
+    Frame template = stream.getFrame();
+    ring = new HeapFrameStore(size, template.getNumPoints(), template.getNumSamples(), template
+        .getNumChannels());
+    slots = new Frame[size];
+    for (int i = 0; i < size; i++)
+      slots[i] = ring.getFrame(i);
+
+    stream.setUnbounded();
+    file.frames = null;
+    file.frameSource = this;
+  }
+
+  /** @return The header and parameters of the live trial. */
+  public C3DFile getFile() {
+    return file;
+  }
+
+  /** Starts the thread that reads frames from the stream into the ring. */
+  public synchronized void start() {
+    if (ingest != null)
+      return;
+    running = true;
+    ingest = new Thread("C3D live ingest") {
+      public void run() {
+        ingest();
+      }
+    };
+    ingest.setDaemon(true);
+    ingest.setPriority(Thread.MAX_PRIORITY);
+    ingest.start();
+  }
+
+  /** Stops reading and closes the stream. The frames held by the ring remain available. */
+  public synchronized void stop() {
+    running = false;
+    if (ingest != null)
+      ingest.interrupt();
+    stream.close(); // also ends a read that is blocked waiting for the next frame
+  }
+
+  /** @return True while frames are being received. */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** @return A frame that can hold the frames of this source, for use with the copy methods. */
+  public Frame newFrame() {
+    return new Frame(ring.numPoints, ring.numSamples, ring.numChannels);
+  }
+
+  /** @return Index of the newest frame received, or -1 if no frame has been received. */
+  public long getLatestIndex() {
+    return published.get();
+  }
+
+  /**
+   * Copies the frame at index (0-based, in order of arrival) into dst.
+   *
+   * @return False if the frame has not been received yet, or has been (or was being) overwritten.
+   */
+  public boolean copyFrame(long index, Frame dst) {
+    if (index < 0 || index > published.get())
+      return false;
+    dst.copyFrom(slots[(int) (index & mask)]);
+
+    // the copy is only valid if the slot was not claimed for a newer frame in the meantime; the
+    // fence keeps the plain reads of the copy from moving after the claim is read
+    VarHandle.loadLoadFence();
+    return claimed.get() - index <= mask;
+  }
+
+  /**
+   * Copies the newest frame into dst. Never blocks the ingest thread; if the frame is overwritten
+   * while it is copied, the copy is retried with the then newest frame.
+   *
+   * @return Index of the frame copied, or -1 if no frame has been received.
+   */
+  public long copyLatest(Frame dst) {
+    while (true) {
+      long index = published.get();
+      if (index < 0 || copyFrame(index, dst))
+        return index;
+    }
+  }
+
+  /** @return The number of frames received so far. */
+  @Override
+  public int getNumFrames() {
+    return (int) Math.min(Integer.MAX_VALUE, published.get() + 1);
+  }
+
+  /**
+   * @return A copy of the frame at index, or null if it has not been received yet or is no longer
+   *         held by the ring.
+   */
+  @Override
+  public Frame getFrame(int index) {
+    Frame frame = newFrame();
+    return copyFrame(index, frame) ? frame : null;
+  }
+
+  /** Reads frames into the ring until the stream ends or the source is stopped. */
+  private void ingest() {
+    Frame received = stream.getFrame();
+    long index = published.get();
+    while (running && stream.next()) {
+      index++;
+      claimed.set(index);
+      // readers must see the claim before any of the slot's new values
+      VarHandle.storeStoreFence();
+      slots[(int) (index & mask)].copyFrom(received);
+      published.lazySet(index);
+    }
+    running = false;
+  }
+}
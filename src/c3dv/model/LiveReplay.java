@@ -0,0 +1,111 @@
+package c3dv.model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for a capture system: sends the frames of a trial over a local socket at the trial's
+ * frame rate (or another rate), looping until the client disconnects. A client receives the header
+ * and parameters of the trial followed by an open-ended data section, which can be read with
+ * {@link C3DReader#openStream(java.nio.channels.ReadableByteChannel)} and a
+ * {@link LiveFrameSource}.
+ *
+ * <pre>
+ * java c3dv.model.LiveReplay trial.c3d 7000 [rate]
+ * </pre>
+ *
+ * @author Justin Stoecker
+ */
+public class LiveReplay {
+
+  private final C3DFile   file;
+  private final float     rate;
+  private final C3DWriter writer = new C3DWriter();
+  private final ByteBuffer metadata;
+  private final ByteBuffer record;
+  private final int        numFrames;
+
+  /** @param rate Frames sent per second; the trial's frame rate if not positive. */
+  public LiveReplay(C3DFile file, float rate) {
+    this.file = file;
+    this.rate = (rate > 0) ? rate : file.framesPerSecond;
+    this.numFrames = file.getNumFrames();
+
+    // the header describes an empty trial; the client reads frames until the connection ends
+    int last3DFrame = file.last3DFrame;
+    file.last3DFrame = file.first3DFrame - 1;
+    writer.writeMetadata(file);
+    file.last3DFrame = last3DFrame;
+    file.storeFrameRange(false);
+    metadata = writer.buf.asReadOnlyBuffer();
+
+    record = ByteBuffer.allocateDirect(writer.recordSize());
+    record.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Accepts clients on port, one at a time, and sends each the trial until it disconnects. */
+  public void serve(int port) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    try {
+      server.bind(new InetSocketAddress(port));
+      while (true) {
+        SocketChannel client = server.accept();
+        try {
+          client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          send(client);
+        } catch (IOException e) {
+          System.err.println("(LiveReplay.serve): client disconnected: " + e.getMessage());
+        } finally {
+          client.close();
+        }
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  /** Sends the header and parameters, then the frames at the replay rate, until writing fails. */
+  void send(SocketChannel client) throws IOException {
+    writeFully(client, metadata.duplicate());
+    if (numFrames == 0)
+      return;
+
+    // frames are due at fixed times from the start, so that sleeping late does not add up
+    long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    long start = System.nanoTime();
+    for (long sent = 0;; sent++) {
+      long wait = start + sent * period - System.nanoTime();
+      if (wait > 0)
+        LockSupport.parkNanos(wait);
+
+      record.clear();
+      writer.encodeFrame(record, file.getFrame((int) (sent % numFrames)));
+      record.flip();
+      writeFully(client, record);
+    }
+  }
+
+  private static void writeFully(SocketChannel channel, ByteBuffer src) throws IOException {
+    while (src.hasRemaining())
+      channel.write(src);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: LiveReplay <file> <port> [rate]");
+      return;
+    }
+    C3DFile file = new C3DReader().load(args[0]);
+    if (file == null)
+      return;
+    float rate = (args.length > 2) ? Float.parseFloat(args[2]) : 0;
+    new LiveReplay(file, rate).serve(Integer.parseInt(args[1]));
+  }
+}
@@ -0,0 +1,105 @@
+package c3dv.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Frame source over a memory-mapped C3D file. Frames are decoded only when they are requested, and
+ * only the most recently used frames are kept on the heap. A single mapping cannot exceed 2 GB, so
+ * the data section is mapped as a series of segments that each hold whole frames.
+ * <p>
+ * Frames changed through their setters are kept for as long as the source is, so that the changes
+ * are not lost when the frame would otherwise be dropped, and they are written instead of the
+ * mapped records.
+ * 
+ * @author Justin Stoecker
+ */
+class MappedFrameSource implements FrameSource {
+
+  /** Number of decoded frames retained for reuse (e.g. while scrubbing back and forth). */
+  static final int           CACHE_SIZE = 64;
+
+  /** Largest number of bytes mapped by a single segment. */
+  static final int           SEGMENT_SIZE = 1 << 30;
+
+  /** The file whose data section is mapped. */
+  final File                 file;
+
+  private final Buffer[]     segments;
+  private final FrameDecoder decoder;
+  private final int          frameSize;
+  private final int          numFrames;
+  private final int          segmentFrames;
+
+  /** Frames that were changed; they are never evicted. */
+  private final Map<Integer, Frame> edited = new HashMap<Integer, Frame>();
+
+  private final Map<Integer, Frame> cache = new LinkedHashMap<Integer, Frame>(CACHE_SIZE, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Integer, Frame> eldest) {
+      if (size() <= CACHE_SIZE)
+        return false;
+      if (eldest.getValue().store.isModified())
+        edited.put(eldest.getKey(), eldest.getValue());
+      return true;
+    }
+  };
+
+  /**
+   * Maps the data section of file, which is open on channel; the mappings remain valid after the
+   * channel is closed.
+   */
+  MappedFrameSource(C3DFile c3d, File file, FileChannel channel, FrameDecoder decoder)
+      throws IOException {
+    this.file = file;
+    this.decoder = decoder;
+    this.frameSize = decoder.frameSize;
+    this.numFrames = c3d.last3DFrame - c3d.first3DFrame + 1;
+    this.segmentFrames = Math.max(1, SEGMENT_SIZE / Math.max(1, frameSize));
+
+    long dataStart = (c3d.dataStartBlock - 1) * 512L;
+    long fileSize = channel.size();
+    segments = new Buffer[(numFrames + segmentFrames - 1) / segmentFrames];
+    for (int i = 0; i < segments.length; i++) {
+      long position = dataStart + (long) i * segmentFrames * frameSize;
+      long size = (long) Math.min(segmentFrames, numFrames - i * segmentFrames) * frameSize;
+
+      // a truncated data section is mapped up to the end of the file
+      size = Math.max(0, Math.min(size, fileSize - position));
+      segments[i] = new Buffer(channel.map(MapMode.READ_ONLY, Math.min(position, fileSize), size));
+      segments[i].setOrder(c3d.byteOrder);
+    }
+  }
+
+  @Override
+  public int getNumFrames() {
+    return numFrames;
+  }
+
+  @Override
+  public synchronized Frame getFrame(int index) {
+    Frame frame = edited.get(index);
+    if (frame == null)
+      frame = cache.get(index);
+    if (frame == null) {
+      frame = decoder.newFrame();
+      decoder.decode(segments[index / segmentFrames], (index % segmentFrames) * frameSize, frame);
+      cache.put(index, frame);
+    }
+    return frame;
+  }
+
+  /** @return True if any frame was changed through its setters since it was decoded. */
+  synchronized boolean isModified() {
+    if (!edited.isEmpty())
+      return true;
+    for (Frame frame : cache.values())
+      if (frame.store.isModified())
+        return true;
+    return false;
+  }
+}
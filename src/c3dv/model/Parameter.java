@@ -4,7 +4,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
- * Describes a feature of the C3D data.
+ * Describes a feature of the C3D data. The data of a parameter read from a file stays encoded in
+ * the file's parameter section until it is first accessed; the parameter only records where it is.
  * 
  * @author Justin Stoecker
  */
@@ -19,20 +20,81 @@ public abstract class Parameter {
   /** Null if scalar; otherwise, dimensions[i] is the length of the i-th dimension */
   public int[]          dimensions;
 
+  /** Buffer holding the encoded data until it is decoded; null once decoded or if there is none. */
+  private volatile Buffer encoded;
+  private int             encodedOffset;
+  private int             encodedLength;
+
   public Parameter(String name, int groupID, int[] dimensions, String description, boolean locked) {
+    this(name, groupID, dimensions, null, 0, 0, description, locked);
+  }
+
+  /**
+   * @param encoded Buffer that holds the encoded data at [offset, offset + length), or null if the
+   *          parameter has no data. The bytes are decoded on first access, so they must not change.
+   */
+  public Parameter(String name, int groupID, int[] dimensions, Buffer encoded, int offset,
+      int length, String description, boolean locked) {
     this.name = name;
     this.id = groupID;
     this.dimensions = dimensions;
     this.description = description;
     this.locked = locked;
+    this.encoded = encoded;
+    this.encodedOffset = offset;
+    this.encodedLength = length;
   }
 
+  /**
+   * Decodes the data if it has not been decoded yet. Parameters of one file share a buffer, so
+   * decoding is synchronized on it.
+   */
+  final void ensureDecoded() {
+    Buffer buf = encoded;
+    if (buf == null)
+      return;
+    synchronized (buf) {
+      if (encoded != null) {
+        decode(buf, encodedOffset, encodedLength);
+        encoded = null;
+      }
+    }
+  }
+
+  /** Decodes length bytes, starting at offset (0-based) of buf, into the parameter's data. */
+  abstract void decode(Buffer buf, int offset, int length);
+
   public abstract String typeName();
 
   public abstract String dataString();
 
   public abstract byte[] getDataBytes();
 
+  /**
+   * Keeps only the given entries along the last dimension, e.g. the labels of selected points.
+   * Entries of multi-dimensional data are the blocks of values that share a last index.
+   */
+  void selectEntries(int[] indices) {
+    if (dimensions == null)
+      return;
+    int n = dimensions[dimensions.length - 1];
+    for (int index : indices)
+      if (index >= n)
+        return;
+    if (selectData(indices, n))
+      dimensions[dimensions.length - 1] = indices.length;
+  }
+
+  /** Keeps the given entries of the data, which has n entries; returns false if not applicable. */
+  abstract boolean selectData(int[] indices, int n);
+
+  /** @return A parameter of the same type with a copy of this parameter's dimensions and data. */
+  abstract Parameter copy();
+
+  int[] copyDimensions() {
+    return (dimensions == null) ? null : dimensions.clone();
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -0,0 +1,420 @@
+package c3dv.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Compressed encoding of 3D point data. Coordinates are quantized to multiples of the file's 3D
+ * scale factor, which is exact for INTEGER files (their points are stored as such multiples) and
+ * within half a scale unit for REAL files. Trajectories are predicted from the two previous frames
+ * and only the prediction errors are stored, zig-zag encoded and bit-packed with the smallest width
+ * that fits the block.
+ * <p>
+ * A compressed data section starts with MAGIC, VERSION and BLOCK_FRAMES (little-endian ints),
+ * followed by blocks of up to BLOCK_FRAMES frames. Blocks are independent of each other, so a range
+ * of frames can be decoded without decoding the blocks before it:
+ *
+ * <pre>
+ * int   length of the rest of the block
+ * for each point, for each of X, Y, Z and the residual word:
+ *   int   value in the block's first frame
+ *   byte  predictor order - 1 (high bit) and width (low 7 bits)
+ *   byte  number of exceptions
+ *   bits  low width bits of the prediction errors of the remaining frames, padded to a whole byte
+ *   for each exception: byte frame index, varint high bits of its error
+ * padding to a multiple of 4 bytes
+ * analog records of the block's frames, encoded as in an uncompressed data section
+ * </pre>
+ *
+ * @author Justin Stoecker
+ */
+class TrajectoryCodec {
+
+  static final int    MAGIC        = 0x5a443343;  // "C3DZ" in little-endian order
+  static final int    VERSION      = 1;
+  static final int    BLOCK_FRAMES = 128;
+
+  /** Number of bytes at the start of a compressed data section. */
+  static final int    SECTION_HEADER_SIZE = 12;
+
+  private final int   numPoints;
+  private final float scale;
+  private final long[] values      = new long[BLOCK_FRAMES];
+  private final long[] errors1     = new long[BLOCK_FRAMES];
+  private final long[] errors2     = new long[BLOCK_FRAMES];
+  private long         widthCost;
+
+  TrajectoryCodec(int numPoints, float scale3DFactor) {
+    this.numPoints = numPoints;
+    this.scale = (scale3DFactor == 0) ? 1 : Math.abs(scale3DFactor);
+  }
+
+  /** @return An upper bound of the bytes needed to encode the points of n frames. */
+  int maxEncodedSize(int n) {
+    return numPoints * 4 * (6 + 8 * n + 2 * n) + 3;
+  }
+
+  // ENCODING
+  // ----------------------------------------------------------------------------------------------
+
+  /** Encodes the points of frames (at most BLOCK_FRAMES) into out (a little-endian buffer). */
+  void encode(Frame[] frames, int n, ByteBuffer out) {
+    for (int point = 0; point < numPoints; point++) {
+      for (int t = 0; t < n; t++)
+        values[t] = Math.round(frames[t].getX(point) / scale);
+      encodeStream(n, 2, out);
+      for (int t = 0; t < n; t++)
+        values[t] = Math.round(frames[t].getY(point) / scale);
+      encodeStream(n, 2, out);
+      for (int t = 0; t < n; t++)
+        values[t] = Math.round(frames[t].getZ(point) / scale);
+      encodeStream(n, 2, out);
+      for (int t = 0; t < n; t++)
+        values[t] = residualWord(frames[t], point);
+      encodeStream(n, 1, out);
+    }
+    while ((out.position() & 3) != 0)
+      out.put((byte) 0);
+  }
+
+  /** @return The 16-bit residual word (camera mask and residual) that the frame's values decode from. */
+  private short residualWord(Frame frame, int point) {
+    float residual = frame.getResidual(point);
+    if (residual < 0)
+      return -1;
+    return (short) ((frame.getCamMask(point) & 0xff) << 8 | (Math.round(residual / scale) & 0xff));
+  }
+
+  /**
+   * Writes values[0, n), predicting each value with the order (1 or 2, up to maxOrder) that gives
+   * the smaller encoding. Each prediction error is stored in width bits; the few errors that need
+   * more bits (e.g. where a marker drops out) are followed up as exceptions, so they do not widen
+   * the whole block.
+   */
+  private void encodeStream(int n, int maxOrder, ByteBuffer out) {
+    int order = 1;
+    long[] errors = predictionErrors(n, 1, errors1);
+    int width = chooseWidth(n, errors);
+    if (maxOrder == 2) {
+      long cost = widthCost;
+      int width2 = chooseWidth(n, predictionErrors(n, 2, errors2));
+      if (widthCost < cost) {
+        order = 2;
+        errors = errors2;
+        width = width2;
+      }
+    }
+
+    int numExceptions = 0;
+    for (int t = 1; t < n; t++)
+      if (width < 64 && (errors[t] >>> width) != 0)
+        numExceptions++;
+
+    out.putInt((int) values[0]);
+    out.put((byte) ((order - 1) << 7 | width));
+    out.put((byte) numExceptions);
+
+    long bits = 0;
+    int numBits = 0;
+    for (int t = 1; t < n; t++) {
+      long error = errors[t];
+      if (width > 32) {
+        bits = pack(out, bits, numBits, error >>> 32, width - 32);
+        numBits = (numBits + width - 32) & 7;
+      }
+      int w = Math.min(width, 32);
+      bits = pack(out, bits, numBits, error, w);
+      numBits = (numBits + w) & 7;
+    }
+    if (numBits > 0)
+      out.put((byte) (bits << (8 - numBits)));
+
+    for (int t = 1; t < n && numExceptions > 0; t++) {
+      if (width < 64 && (errors[t] >>> width) != 0) {
+        out.put((byte) t);
+        for (long high = errors[t] >>> width; high != 0; high >>>= 7)
+          out.put((byte) ((high & 0x7f) | (high > 0x7f ? 0x80 : 0)));
+      }
+    }
+  }
+
+  /** @return errors, filled with the zig-zag encoded errors of predicting values[1, n). */
+  private long[] predictionErrors(int n, int order, long[] errors) {
+    for (int t = 1; t < n; t++)
+      errors[t] = zigZag(values[t] - predict(t, order));
+    return errors;
+  }
+
+  /**
+   * @return The width (bits per error) that minimizes the size of the stream, counting one index
+   *         byte and the varint bytes of the high bits for each exception. The size is stored in
+   *         widthCost.
+   */
+  private int chooseWidth(int n, long[] errors) {
+    int[] lengths = new int[65];
+    for (int t = 1; t < n; t++)
+      lengths[64 - Long.numberOfLeadingZeros(errors[t])]++;
+
+    int bestWidth = 64;
+    long bestCost = Long.MAX_VALUE;
+    for (int width = 0; width <= 64; width++) {
+      long cost = (long) (n - 1) * width;
+      int numExceptions = 0;
+      for (int length = width + 1; length <= 64; length++) {
+        numExceptions += lengths[length];
+        cost += lengths[length] * (8 + 8 * ((length - width + 6) / 7));
+      }
+      if (numExceptions < 256 && cost < bestCost) {
+        bestCost = cost;
+        bestWidth = width;
+      }
+    }
+    widthCost = bestCost;
+    return bestWidth;
+  }
+
+  /**
+   * Appends the low width (at most 32) bits of value to the numBits pending bits, writing each
+   * completed byte to out. @return The pending bits.
+   */
+  private static long pack(ByteBuffer out, long bits, int numBits, long value, int width) {
+    if (width == 0)
+      return bits;
+    bits = (bits << width) | (value & (-1L >>> (64 - width)));
+    numBits += width;
+    while (numBits >= 8) {
+      numBits -= 8;
+      out.put((byte) (bits >>> numBits));
+    }
+    return bits;
+  }
+
+  /** @return The value at t predicted from the decoded (or original) values before it. */
+  private long predict(int t, int order) {
+    if (order == 1 || t == 1)
+      return values[t - 1];
+    return 2 * values[t - 1] - values[t - 2];
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  // DECODING
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Decodes frames [lo, hi) of a block of n frames, whose point data starts at the position of in,
+   * into the store starting at storeIndex. Only the selected points are decoded; the others are
+   * stepped over. On return, in is positioned after the block's point data and padding. Positions
+   * are relative to a block that starts at index 0 of in.
+   */
+  void decode(ByteBuffer in, int n, int[] points, int lo, int hi, FrameStore store, int storeIndex) {
+    int[] pointStart = new int[numPoints + 1];
+    for (int point = 0; point < numPoints; point++) {
+      pointStart[point] = in.position();
+      for (int stream = 0; stream < 4; stream++)
+        skipStream(in, n);
+    }
+    pointStart[numPoints] = in.position();
+
+    for (int k = 0; k < points.length; k++) {
+      in.position(pointStart[points[k]]);
+      int j = store.pointOffset(k) + storeIndex - lo;
+
+      decodeStream(in, n);
+      for (int t = lo; t < hi; t++)
+        store.setPoint(FrameStore.X, j + t, values[t] * scale);
+      decodeStream(in, n);
+      for (int t = lo; t < hi; t++)
+        store.setPoint(FrameStore.Y, j + t, values[t] * scale);
+      decodeStream(in, n);
+      for (int t = lo; t < hi; t++)
+        store.setPoint(FrameStore.Z, j + t, values[t] * scale);
+      decodeStream(in, n);
+      for (int t = lo; t < hi; t++) {
+        short word4 = (short) values[t];
+        store.setCamMask(j + t, (byte) ((word4 >> 8) & 0xff));
+        store.setPoint(FrameStore.RESIDUAL, j + t, (word4 == -1) ? -1 : (word4 & 0xff) * scale);
+      }
+    }
+
+    in.position((pointStart[numPoints] + 3) & ~3);
+  }
+
+  /** Moves in past a stream of n values without decoding it. */
+  private static void skipStream(ByteBuffer in, int n) {
+    int position = in.position() + 4;
+    int width = in.get(position++) & 0x7f;
+    int numExceptions = in.get(position++) & 0xff;
+    position += ((n - 1) * width + 7) / 8;
+    for (int i = 0; i < numExceptions; i++) {
+      position++;
+      while ((in.get(position++) & 0x80) != 0)
+        ;
+    }
+    in.position(position);
+  }
+
+  /** Reads n values into values[0, n). */
+  private void decodeStream(ByteBuffer in, int n) {
+    values[0] = in.getInt();
+    int header = in.get() & 0xff;
+    int order = (header >>> 7) + 1;
+    int width = header & 0x7f;
+    int numExceptions = in.get() & 0xff;
+    long[] errors = errors1;
+
+    long bits = 0;
+    int numBits = 0;
+    for (int t = 1; t < n; t++) {
+      long error = 0;
+      for (int remaining = width; remaining > 0;) {
+        if (numBits == 0) {
+          bits = in.get() & 0xff;
+          numBits = 8;
+        }
+        int take = Math.min(remaining, numBits);
+        numBits -= take;
+        remaining -= take;
+        error = (error << take) | ((bits >>> numBits) & ((1 << take) - 1));
+      }
+      errors[t] = error;
+    }
+
+    for (int i = 0; i < numExceptions; i++) {
+      int t = in.get() & 0xff;
+      long high = 0;
+      for (int shift = 0;; shift += 7) {
+        int b = in.get();
+        high |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          break;
+      }
+      errors[t] |= high << width;
+    }
+
+    for (int t = 1; t < n; t++)
+      values[t] = predict(t, order) + unZigZag(errors[t]);
+  }
+
+  // SECTIONS
+  // ----------------------------------------------------------------------------------------------
+
+  /**
+   * Reads the blocks of a compressed data section in order with positioned reads, and decodes them
+   * into frame stores.
+   */
+  static class SectionReader {
+    private final ReadableByteChannel channel;
+    private final FrameDecoder    decoder;
+    private final TrajectoryCodec codec;
+    private final Buffer.ByteOrder byteOrder;
+    private final int             numFrames;
+    private final ByteBuffer      length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer            block;
+    private Buffer                blockBuf;
+    private int                   blockStart = -BLOCK_FRAMES;
+    private int                   blockFrames;
+
+    /**
+     * Reads blocks sequentially from channel, which must be positioned at the first block (just
+     * after the section header). Skipped blocks are stepped over if the channel is seekable.
+     */
+    SectionReader(C3DFile file, ReadableByteChannel channel, FrameDecoder decoder) {
+      this.channel = channel;
+      this.decoder = decoder;
+      this.codec = new TrajectoryCodec(decoder.numPoints, file.scale3DFactor);
+      this.byteOrder = file.byteOrder;
+      this.numFrames = file.last3DFrame - file.first3DFrame + 1;
+    }
+
+    /** @return Index of the first frame of the current block. */
+    int getBlockStart() {
+      return blockStart;
+    }
+
+    /** @return Number of frames in the current block. */
+    int getBlockFrames() {
+      return blockFrames;
+    }
+
+    /**
+     * Moves to the next block and reads it, unless skip is true (then only its length is read).
+     *
+     * @return Number of bytes read, or -1 if there are no more blocks.
+     */
+    int next(boolean skip) throws IOException {
+      if (blockStart + BLOCK_FRAMES >= numFrames)
+        return -1;
+      blockStart += BLOCK_FRAMES;
+      blockFrames = Math.min(BLOCK_FRAMES, numFrames - blockStart);
+
+      length.clear();
+      C3DReader.readFully(channel, length);
+      int size = length.getInt(0);
+      if (skip) {
+        if (channel instanceof SeekableByteChannel) {
+          SeekableByteChannel seekable = (SeekableByteChannel) channel;
+          seekable.position(seekable.position() + size);
+        } else {
+          C3DReader.skipFully(channel, size);
+        }
+        return 4;
+      }
+
+      if (block == null || block.capacity() < size) {
+        block = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        blockBuf = new Buffer(block);
+        blockBuf.setOrder(byteOrder);
+      }
+      block.clear();
+      block.limit(size);
+      C3DReader.readFully(channel, block);
+      return 4 + size;
+    }
+
+    /** Decodes frames [lo, hi) of the current block into store, starting at storeIndex. */
+    void decode(int lo, int hi, FrameStore store, int storeIndex) {
+      block.position(0);
+      codec.decode(block, blockFrames, decoder.points, lo, hi, store, storeIndex);
+      int analogStart = block.position();
+      int analogSize = decoder.analogSize();
+      for (int t = lo; t < hi; t++)
+        decoder.decodeAnalog(blockBuf, analogStart + t * analogSize, store, storeIndex + t - lo);
+    }
+  }
+
+  /** @return True if the data section at position starts with the compressed section header. */
+  static boolean isCompressed(FileChannel channel, long position) throws IOException {
+    if (channel.size() < position + SECTION_HEADER_SIZE)
+      return false;
+    ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_SIZE);
+    C3DReader.readFully(channel, header, position);
+    return isSectionHeader(header);
+  }
+
+  /** @return True if the first SECTION_HEADER_SIZE bytes of header are the section header. */
+  static boolean isSectionHeader(ByteBuffer header) {
+    if (header.limit() < SECTION_HEADER_SIZE)
+      return false;
+    ByteBuffer le = header.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    return le.getInt(0) == MAGIC && le.getInt(4) == VERSION && le.getInt(8) == BLOCK_FRAMES;
+  }
+
+  /** @return A little-endian section header. */
+  static ByteBuffer newSectionHeader() {
+    ByteBuffer header = ByteBuffer.allocate(SECTION_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_FRAMES);
+    header.flip();
+    return header;
+  }
+}
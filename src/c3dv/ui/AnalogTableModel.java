@@ -5,6 +5,7 @@ import java.util.Arrays;
 import javax.swing.table.AbstractTableModel;
 
 import c3dv.model.C3DFile;
+import c3dv.model.Frame;
 
 public class AnalogTableModel extends AbstractTableModel {
 
@@ -27,7 +28,7 @@ public class AnalogTableModel extends AbstractTableModel {
 
   @Override
   public int getRowCount() {
-    return file.frames.length * file.numAnalogChannelsPerVideoFrame;
+    return file.getNumFrames() * file.numAnalogChannelsPerVideoFrame;
   }
 
   @Override
@@ -37,7 +38,9 @@ public class AnalogTableModel extends AbstractTableModel {
     switch (col) {
     case 0: return frameIndex;
     case 1: return sampleIndex;
-    case 2: return Arrays.toString(file.frames[frameIndex].analogValues[sampleIndex]);
+    case 2:
+      Frame frame = file.getFrame(frameIndex); // null if a live source no longer holds the frame
+      return (frame == null) ? null : Arrays.toString(frame.getAnalogSample(sampleIndex));
     }
     return null;
   }
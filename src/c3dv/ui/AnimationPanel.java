@@ -16,11 +16,13 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
+import javax.swing.Timer;
 import javax.swing.border.MatteBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import c3dv.model.C3DFile;
+import c3dv.model.LiveFrameSource;
 import c3dv.view.Renderer;
 
 public class AnimationPanel extends JPanel {
@@ -33,6 +35,10 @@ public class AnimationPanel extends JPanel {
   private JLabel   lblHertz;
   public boolean   playing = false;
   private JButton  btnPlay;
+  private Timer    liveTimer;
+
+  /** Milliseconds between updates of the slider and labels while following a live source. */
+  static final int LIVE_UPDATE_MS = 33;
 
   public AnimationPanel(Renderer renderer, GLCanvas canvas) {
     this.renderer = renderer;
@@ -126,13 +132,45 @@ public class AnimationPanel extends JPanel {
   }
 
   public void setFile(C3DFile file) {
+    stopLive();
     this.file = file;
     slider.setMinimum(0);
-    slider.setMaximum(file.last3DFrame - file.first3DFrame);
+    slider.setMaximum(Math.max(0, file.last3DFrame - file.first3DFrame));
     slider.setValue(0);
     lblHertz.setText(Float.toString(file.framesPerSecond) + "Hz");
   }
 
+  /**
+   * Follows the newest frame of a live source: the slider and labels are updated periodically on the
+   * event dispatch thread, and playback and scrubbing are disabled. The source's file must have
+   * been set first.
+   */
+  public void setLive(final LiveFrameSource live) {
+    stopLive();
+    playing = false;
+    slider.setEnabled(false);
+    btnPlay.setEnabled(false);
+    liveTimer = new Timer(LIVE_UPDATE_MS, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        int frame = (int) Math.max(0, live.getLatestIndex());
+        slider.setMaximum(frame);
+        slider.setValue(frame);
+        lblFrame.setText(Integer.toString(frame) + (live.isRunning() ? "" : " (ended)"));
+        lblTime.setText(String.format("%.3f", frame / file.framesPerSecond));
+      }
+    });
+    liveTimer.start();
+  }
+
+  private void stopLive() {
+    if (liveTimer == null)
+      return;
+    liveTimer.stop();
+    liveTimer = null;
+    slider.setEnabled(true);
+    btnPlay.setEnabled(true);
+  }
+
   private void setFrame(int frame) {
     if (frame != slider.getValue())
       slider.setValue(frame);
@@ -146,7 +184,7 @@ public class AnimationPanel extends JPanel {
 
   private class SliderListener implements ChangeListener {
     public void stateChanged(ChangeEvent e) {
-      if (file != null)
+      if (file != null && liveTimer == null)
         setFrame(slider.getValue());
     }
   }
@@ -9,12 +9,14 @@ import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLEventListener;
 import javax.media.opengl.GLProfile;
+import javax.media.opengl.GLRunnable;
 import javax.media.opengl.awt.GLCanvas;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 import javax.swing.border.MatteBorder;
@@ -23,7 +25,7 @@ import javax.swing.event.ListSelectionListener;
 
 import jgl.math.Maths;
 import c3dv.model.C3DFile;
-import c3dv.model.C3DReader;
+import c3dv.model.LiveFrameSource;
 import c3dv.view.Renderer;
 
 import com.jogamp.opengl.util.FPSAnimator;
@@ -37,6 +39,7 @@ public class C3DViewer extends JFrame {
   private GLCanvas       canvas;
   private AnimationPanel animationPanel;
   private MarkerPanel    markerPanel;
+  private LiveFrameSource live;
 
   public C3DViewer(C3DFile file) {
     GLProfile glp = GLProfile.get(GLProfile.GL2);
@@ -97,6 +100,11 @@ public class C3DViewer extends JFrame {
   }
 
   void setFile(C3DFile file) {
+    if (live != null && live.getFile() != file) {
+      live.stop();
+      live = null;
+    }
+    final C3DFile previous = this.file;
     this.file = file;
 
     boolean paramFrameWasVisible = parametersFrame == null ? false : parametersFrame.isVisible();
@@ -110,6 +118,38 @@ public class C3DViewer extends JFrame {
     animationPanel.setFile(file);
     renderer.setFile(file);
     markerPanel.setFile(file);
+
+    // the previous file's storage is released on the GL thread, once no display can still be
+    // drawing its frames
+    if (previous != null && previous != file) {
+      canvas.invoke(false, new GLRunnable() {
+        public boolean run(GLAutoDrawable drawable) {
+          previous.close();
+          return true;
+        }
+      });
+    }
+  }
+
+  /**
+   * Loads a file in the background and shows it once it is decoded. The viewer keeps rendering the
+   * current file in the meantime.
+   */
+  void open(String fileName) {
+    new FileLoader(this, fileName).execute();
+  }
+
+  /** Shows the file of a live source and follows its newest frame. */
+  void setLive(LiveFrameSource live) {
+    setFile(live.getFile());
+    this.live = live;
+    animationPanel.setLive(live);
+    renderer.setLive(live);
+  }
+
+  /** Connects to a live capture source (host:port or a pipe) in the background. */
+  void connect(String address) {
+    new LiveConnector(this, address).execute();
   }
 
   private JMenuBar createMenuBar() {
@@ -123,11 +163,22 @@ public class C3DViewer extends JFrame {
     openMenuItem.addActionListener(new ActionListener() {
       public void actionPerformed(ActionEvent e) {
         if (fileChooser.showOpenDialog(C3DViewer.this) == JFileChooser.APPROVE_OPTION) {
-          setFile(new C3DReader().load(fileChooser.getSelectedFile().getAbsolutePath()));
+          open(fileChooser.getSelectedFile().getAbsolutePath());
         }
       }
     });
 
+    JMenuItem liveMenuItem = new JMenuItem("Connect to Live Capture...");
+    fileMenu.add(liveMenuItem);
+    liveMenuItem.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        String address = JOptionPane.showInputDialog(C3DViewer.this,
+            "Address of the capture source (host:port or pipe):", "localhost:7000");
+        if (address != null && !address.trim().isEmpty())
+          connect(address.trim());
+      }
+    });
+
 //    JMenuItem saveMenuItem = new JMenuItem("Save As...");
 //    fileMenu.add(saveMenuItem);
 //    saveMenuItem.addActionListener(new ActionListener() {
@@ -156,10 +207,16 @@ public class C3DViewer extends JFrame {
   }
 
   public static void main(String[] args) {
-    final C3DFile file = (args.length == 1) ? new C3DReader().load(args[0]) : null;
+    // c3dviewer [file] or c3dviewer --live host:port
+    final boolean live = (args.length == 2 && args[0].equals("--live"));
+    final String fileName = (args.length == 1 || live) ? args[args.length - 1] : null;
     SwingUtilities.invokeLater(new Runnable() {
       public void run() {
-        new C3DViewer(file);
+        C3DViewer viewer = new C3DViewer(null);
+        if (live)
+          viewer.connect(fileName);
+        else if (fileName != null)
+          viewer.open(fileName);
       }
     });
   }
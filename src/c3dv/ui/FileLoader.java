@@ -0,0 +1,90 @@
+package c3dv.ui;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+
+import c3dv.model.C3DFile;
+import c3dv.model.C3DReader;
+import c3dv.model.FrameCache;
+
+/**
+ * Opens a C3D file on a background thread. The data section is memory-mapped and frames are decoded
+ * as the viewer shows them (see {@link C3DReader#loadMapped(String)}), so usually only the header
+ * and parameters are read here; a compressed data section has to be decoded (or mapped from the
+ * cache) before it can be shown, and a progress monitor shows the bytes read and frames decoded
+ * while it is. The opened file is handed to the viewer on the event dispatch thread; cancelling the
+ * monitor stops the reader and leaves the current file open.
+ *
+ * @author Justin Stoecker
+ */
+class FileLoader extends SwingWorker<C3DFile, String> implements C3DReader.ProgressListener {
+
+  /** Decoded compressed trials, so that reopening a trial does not decode it again. */
+  private static final FrameCache cache = new FrameCache(new File(System.getProperty("user.home"),
+                                            ".c3dviewer/cache"), 2L << 30);
+
+  private final C3DViewer       viewer;
+  private final String          fileName;
+  private final C3DReader       reader = new C3DReader();
+  private final ProgressMonitor monitor;
+
+  FileLoader(C3DViewer viewer, String fileName) {
+    this.viewer = viewer;
+    this.fileName = fileName;
+    reader.setParallel(true);
+    reader.setCache(cache);
+    reader.setProgressListener(this);
+
+    // reading and decoding each make up half of the progress bar
+    monitor = new ProgressMonitor(viewer, "Loading " + fileName, "", 0, 200);
+    monitor.setMillisToDecideToPopup(250);
+  }
+
+  protected C3DFile doInBackground() {
+    return reader.loadMapped(fileName);
+  }
+
+  /** Called on the loading thread(s) by the reader. */
+  public void progress(long bytesRead, long totalBytes, int framesDecoded, int totalFrames) {
+    int bytesProgress = (totalBytes > 0) ? (int) (100 * bytesRead / totalBytes) : 0;
+    int framesProgress = (totalFrames > 0) ? 100 * framesDecoded / totalFrames : 0;
+    setProgress(Math.min(100, (bytesProgress + framesProgress) / 2));
+    if (totalFrames > 0)
+      publish("Decoded " + framesDecoded + " of " + totalFrames + " frames");
+    else
+      publish("Read " + (bytesRead >> 10) + " of " + (totalBytes >> 10) + " KB");
+  }
+
+  protected void process(List<String> notes) {
+    if (monitor.isCanceled()) {
+      reader.cancel();
+      return;
+    }
+    monitor.setNote(notes.get(notes.size() - 1));
+    monitor.setProgress(2 * getProgress());
+  }
+
+  protected void done() {
+    monitor.close();
+    if (reader.isCancelled())
+      return;
+
+    C3DFile file = null;
+    try {
+      file = get();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+    }
+
+    if (file == null)
+      System.err.println("(FileLoader.done): could not load " + fileName);
+    else
+      viewer.setFile(file);
+  }
+}
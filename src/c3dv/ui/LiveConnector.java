@@ -0,0 +1,74 @@
+package c3dv.ui;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import c3dv.model.C3DFrameStream;
+import c3dv.model.C3DReader;
+import c3dv.model.LiveFrameSource;
+
+/**
+ * Connects to a live capture source on a background thread and hands it to the viewer once the
+ * header and parameters have been received. The address is either host:port of a socket, or the
+ * path of a named pipe that the capture system writes to.
+ *
+ * @author Justin Stoecker
+ */
+class LiveConnector extends SwingWorker<LiveFrameSource, Void> {
+
+  private final C3DViewer viewer;
+  private final String    address;
+
+  LiveConnector(C3DViewer viewer, String address) {
+    this.viewer = viewer;
+    this.address = address;
+  }
+
+  protected LiveFrameSource doInBackground() throws IOException {
+    C3DReader reader = new C3DReader();
+    C3DFrameStream stream;
+    int colon = address.lastIndexOf(':');
+    if (colon > 0 && address.substring(colon + 1).matches("\\d+")) {
+      SocketChannel channel = SocketChannel.open();
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      channel.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address
+          .substring(colon + 1))));
+      stream = reader.openStream(channel);
+      if (stream == null)
+        channel.close();
+    } else {
+      FileInputStream in = new FileInputStream(address);
+      stream = reader.openStream(in);
+      if (stream == null)
+        in.close();
+    }
+    if (stream == null)
+      return null;
+
+    LiveFrameSource live = new LiveFrameSource(stream, LiveFrameSource.CAPACITY);
+    live.start();
+    return live;
+  }
+
+  protected void done() {
+    LiveFrameSource live = null;
+    try {
+      live = get();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      System.err.println("(LiveConnector.done): " + e.getCause().getMessage());
+    }
+
+    if (live == null)
+      System.err.println("(LiveConnector.done): could not connect to " + address);
+    else
+      viewer.setLive(live);
+  }
+}
@@ -33,21 +33,28 @@ public class PointTableModel extends AbstractTableModel {
 
   @Override
   public int getRowCount() {
-    return file.frames.length * file.num3DPoints;
+    return file.getNumFrames() * file.num3DPoints;
   }
 
   @Override
   public Object getValueAt(int row, int col) {
     int frameIndex = row / file.num3DPoints;
     int pointIndex = row % file.num3DPoints;
+    if (col == 0)
+      return frameIndex;
+    if (col == 1)
+      return pointIndex;
+
+    // a live source only holds its most recent frames
+    Frame frame = file.getFrame(frameIndex);
+    if (frame == null)
+      return null;
     switch (col) {
-    case 0: return frameIndex;
-    case 1: return pointIndex;
-    case 2: return file.frames[frameIndex].x[pointIndex];
-    case 3: return file.frames[frameIndex].y[pointIndex];
-    case 4: return file.frames[frameIndex].z[pointIndex];
-    case 5: return file.frames[frameIndex].residual[pointIndex];
-    case 6: return binaryString(file.frames[frameIndex].camMask[pointIndex]);
+    case 2: return frame.getX(pointIndex);
+    case 3: return frame.getY(pointIndex);
+    case 4: return frame.getZ(pointIndex);
+    case 5: return frame.getResidual(pointIndex);
+    case 6: return binaryString(frame.getCamMask(pointIndex));
     }
     return null;
   }
@@ -27,7 +27,7 @@ public class Markers {
     if (list == -1)
       init(gl);
 
-    for (int markerIndex = 0; markerIndex < frame.x.length; markerIndex++) {
+    for (int markerIndex = 0; markerIndex < frame.getNumPoints(); markerIndex++) {
       
       if (markerIndex == selected) {
         gl.glColor3f(0.3f, 0.9f, 0.4f);
@@ -35,9 +35,9 @@ public class Markers {
         gl.glColor3f(0.9f, 0.3f, 0.4f);
       }
       
-      float x = frame.x[markerIndex] * markerScale;
-      float y = frame.y[markerIndex] * markerScale;
-      float z = frame.z[markerIndex] * markerScale;
+      float x = frame.getX(markerIndex) * markerScale;
+      float y = frame.getY(markerIndex) * markerScale;
+      float z = frame.getZ(markerIndex) * markerScale;
 
       gl.glPushMatrix();
       gl.glTranslatef(x, y, z);
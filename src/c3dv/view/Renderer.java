@@ -10,6 +10,8 @@ import jgl.cameras.Camera;
 import jgl.core.Viewport;
 import jgl.math.vector.Transform;
 import c3dv.model.C3DFile;
+import c3dv.model.Frame;
+import c3dv.model.LiveFrameSource;
 
 public class Renderer implements GLEventListener {
 
@@ -23,6 +25,9 @@ public class Renderer implements GLEventListener {
   int         curFrame;
   float       aspectRatio = 1;
   int         selected    = -1;
+  volatile LiveFrameSource live;
+  LiveFrameSource liveFrameSource;
+  Frame       liveFrame;
 
   public Renderer() {
     grid.update(coordSystem);
@@ -37,6 +42,7 @@ public class Renderer implements GLEventListener {
   }
 
   public void setFile(C3DFile file) {
+    this.live = null;
     this.file = file;
     curFrame = 0;
     coordSystem.update(file);
@@ -44,6 +50,14 @@ public class Renderer implements GLEventListener {
     grid.update(coordSystem);
   }
 
+  /**
+   * Shows the newest frame of a live source, which is followed until another file is set. The
+   * source's file must have been set first.
+   */
+  public void setLive(LiveFrameSource live) {
+    this.live = live;
+  }
+
   public void setFrame(int curFrame) {
     this.curFrame = curFrame;
   }
@@ -84,6 +98,22 @@ public class Renderer implements GLEventListener {
 
     if (file == null)
       return;
-    markers.draw(gl, selected, file.frames[curFrame]);
+
+    LiveFrameSource live = this.live;
+    if (live != null) {
+      // the newest frame is copied into a frame owned by this thread; the source never waits for it
+      if (liveFrameSource != live) {
+        liveFrameSource = live;
+        liveFrame = live.newFrame();
+      }
+      if (live.copyLatest(liveFrame) >= 0)
+        markers.draw(gl, selected, liveFrame);
+      return;
+    }
+
+    // a live file has no frame to show until its source is followed
+    Frame frame = file.getFrame(curFrame);
+    if (frame != null)
+      markers.draw(gl, selected, frame);
   }
 }
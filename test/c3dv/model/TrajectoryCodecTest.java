@@ -0,0 +1,180 @@
+package c3dv.model;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Round trip of the compressed data section. Each file given on the command line gets dropouts
+ * added and is written uncompressed; that trial is the reference. It is then written compressed
+ * and read back with load, load(from, to) and openStream, and every frame must match the reference:
+ * exactly for INTEGER files, and within half of the 3D scale factor for REAL files. Exits with
+ * status 1 if any frame differs.
+ *
+ * @author Justin Stoecker
+ */
+public class TrajectoryCodecTest {
+
+  private final String name;
+  private int          failures;
+  private int          checked;
+
+  private TrajectoryCodecTest(String name) {
+    this.name = name;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("usage: TrajectoryCodecTest file.c3d...");
+      System.exit(2);
+    }
+
+    int failures = 0;
+    for (String fileName : args)
+      failures += new TrajectoryCodecTest(new File(fileName).getName()).run(fileName);
+
+    if (failures > 0) {
+      System.err.println(failures + " mismatches");
+      System.exit(1);
+    }
+    System.out.println("TrajectoryCodecTest passed");
+  }
+
+  private int run(String fileName) throws IOException {
+    File plain = File.createTempFile("c3dz-plain", ".c3d");
+    File packed = File.createTempFile("c3dz-packed", ".c3d");
+    try {
+      C3DFile original = new C3DReader().load(fileName);
+      check(original != null, "could not load " + fileName);
+      int numFrames = original.getNumFrames();
+      check(numFrames % TrajectoryCodec.BLOCK_FRAMES != 0 && numFrames > TrajectoryCodec.BLOCK_FRAMES,
+          "frame count " + numFrames + " should end in a partial block");
+      addDropouts(original);
+      check(new C3DWriter().write(original, plain.getPath()), "could not write " + plain);
+      original.close();
+
+      C3DFile reference = new C3DReader().load(plain.getPath());
+      check(countDropouts(reference) > 0, "reference has no dropouts");
+      check(new C3DWriter().writeCompressed(reference, packed.getPath()), "could not compress");
+      float tolerance = (reference.dataFormat == C3DFile.DataFormat.INTEGER) ? 0
+          : Math.abs(reference.scale3DFactor) / 2;
+
+      C3DFile loaded = new C3DReader().load(packed.getPath());
+      check(loaded != null, "could not load the compressed file");
+      check(loaded.getNumFrames() == numFrames, "load: " + loaded.getNumFrames() + " frames");
+      for (int i = 0; i < numFrames; i++)
+        compare("load", reference.getFrame(i), loaded.getFrame(i), i, tolerance);
+      loaded.close();
+
+      // ranges within a block, across block boundaries, and ending in the partial last block
+      int first = reference.first3DFrame;
+      int last = reference.last3DFrame;
+      int block = TrajectoryCodec.BLOCK_FRAMES;
+      int[][] ranges = { { first, first }, { first + 5, first + 40 },
+          { first + block - 1, first + block }, { first + 100, Math.min(last, first + 300) },
+          { last - numFrames % block, last }, { last, last }, { first, last } };
+      for (int[] range : ranges) {
+        C3DFile part = new C3DReader().load(packed.getPath(), range[0], range[1]);
+        String what = "load(" + range[0] + ", " + range[1] + ")";
+        check(part != null, what + " failed");
+        check(part.getNumFrames() == range[1] - range[0] + 1, what + ": " + part.getNumFrames()
+            + " frames");
+        for (int i = 0; i < part.getNumFrames(); i++)
+          compare(what, reference.getFrame(range[0] - first + i), part.getFrame(i),
+              range[0] - first + i, tolerance);
+        part.close();
+      }
+
+      C3DFrameStream stream = new C3DReader().openStream(packed.getPath());
+      check(stream != null, "could not open a stream");
+      int streamed = 0;
+      while (stream.next()) {
+        compare("openStream", reference.getFrame(streamed), stream.getFrame(), streamed, tolerance);
+        streamed++;
+      }
+      stream.close();
+      check(streamed == numFrames, "openStream: " + streamed + " frames");
+
+      System.out.println(name + ": " + numFrames + " frames, " + countDropouts(reference)
+          + " dropouts, " + checked + " frames compared, " + failures + " mismatches");
+      reference.close();
+    } catch (IllegalStateException e) {
+      System.err.println(name + ": " + e.getMessage());
+      failures++;
+    } finally {
+      plain.delete();
+      packed.delete();
+    }
+    return failures;
+  }
+
+  /**
+   * Drops the first point in frames around the first block boundary, the second point in the last
+   * frames, and every point in one frame.
+   */
+  private static void addDropouts(C3DFile file) {
+    int numFrames = file.getNumFrames();
+    int block = TrajectoryCodec.BLOCK_FRAMES;
+    for (int i = block - 3; i < block + 3; i++)
+      drop(file.getFrame(i), 0);
+    for (int i = numFrames - 4; i < numFrames; i++)
+      drop(file.getFrame(i), 1 % file.num3DPoints);
+    for (int p = 0; p < file.num3DPoints; p++)
+      drop(file.getFrame(block / 2), p);
+  }
+
+  private static void drop(Frame frame, int pointIndex) {
+    frame.setPoint(pointIndex, 0, 0, 0, -1, (byte) 0);
+  }
+
+  private static int countDropouts(C3DFile file) {
+    int count = 0;
+    for (int i = 0; i < file.getNumFrames(); i++)
+      for (int p = 0; p < file.num3DPoints; p++)
+        if (!file.getFrame(i).isValid(p))
+          count++;
+    return count;
+  }
+
+  private void compare(String what, Frame expected, Frame actual, int index, float tolerance) {
+    checked++;
+    for (int p = 0; p < expected.getNumPoints(); p++) {
+      if (expected.isValid(p) != actual.isValid(p)) {
+        fail(what, index, "point " + p + " valid " + actual.isValid(p));
+        continue;
+      }
+      if (!expected.isValid(p))
+        continue;
+      if (!near(expected.getX(p), actual.getX(p), tolerance)
+          || !near(expected.getY(p), actual.getY(p), tolerance)
+          || !near(expected.getZ(p), actual.getZ(p), tolerance)
+          || !near(expected.getResidual(p), actual.getResidual(p), tolerance)
+          || expected.getCamMask(p) != actual.getCamMask(p))
+        fail(what, index, "point " + p + " (" + actual.getX(p) + ", " + actual.getY(p) + ", "
+            + actual.getZ(p) + ") should be (" + expected.getX(p) + ", " + expected.getY(p) + ", "
+            + expected.getZ(p) + ")");
+    }
+    for (int s = 0; s < expected.getNumSamples(); s++)
+      for (int c = 0; c < expected.getNumChannels(); c++)
+        if (Float.compare(expected.getAnalog(s, c), actual.getAnalog(s, c)) != 0)
+          fail(what, index, "analog " + s + "/" + c + " " + actual.getAnalog(s, c) + " should be "
+              + expected.getAnalog(s, c));
+  }
+
+  /** Values within tolerance, allowing for float rounding of ties such as 0.05 at 0.1 scale. */
+  private static boolean near(float expected, float actual, float tolerance) {
+    if (tolerance == 0)
+      return Float.compare(expected, actual) == 0;
+    return Math.abs(expected - actual) <= tolerance + 2 * Math.ulp(Math.abs(expected));
+  }
+
+  private void fail(String what, int index, String message) {
+    if (failures < 10)
+      System.err.println(name + ": " + what + ", frame " + index + ": " + message);
+    failures++;
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition)
+      throw new IllegalStateException(message);
+  }
+}